@@ -0,0 +1,74 @@
+package org.micromanager.internal.zmq;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte arrays kept for reuse, keyed by their exact size. Images of a given
+ * acquisition are all the same size, so arrays given back after one image has
+ * been decoded can be received into again for the next one instead of
+ * allocating megabytes per image
+ *
+ * @author henrypinkard
+ */
+public class BufferPool {
+
+   private final int maxPerSize_;
+   private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<byte[]>> buffers_
+           = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<byte[]>>();
+   private final ConcurrentHashMap<Integer, AtomicInteger> counts_
+           = new ConcurrentHashMap<Integer, AtomicInteger>();
+   private final AtomicLong numAllocated_ = new AtomicLong();
+   private final AtomicLong numReused_ = new AtomicLong();
+
+   /**
+    * @param maxPerSize most arrays of any one size kept for reuse; further
+    * ones given back are left to the garbage collector
+    */
+   public BufferPool(int maxPerSize) {
+      maxPerSize_ = maxPerSize;
+   }
+
+   /**
+    * @param size
+    * @return a pooled array of exactly this size, or a new one if there are
+    * none. Contents are undefined
+    */
+   public byte[] take(int size) {
+      ConcurrentLinkedQueue<byte[]> queue = buffers_.get(size);
+      byte[] buffer = queue == null ? null : queue.poll();
+      if (buffer == null) {
+         numAllocated_.incrementAndGet();
+         return new byte[size];
+      }
+      counts_.get(size).decrementAndGet();
+      numReused_.incrementAndGet();
+      return buffer;
+   }
+
+   /**
+    * Return an array for reuse. Nothing else may hold on to it afterwards
+    *
+    * @param buffer
+    */
+   public void give(byte[] buffer) {
+      AtomicInteger count = counts_.computeIfAbsent(buffer.length, (Integer s) -> new AtomicInteger());
+      if (count.incrementAndGet() > maxPerSize_) {
+         count.decrementAndGet();
+         return;
+      }
+      buffers_.computeIfAbsent(buffer.length,
+              (Integer s) -> new ConcurrentLinkedQueue<byte[]>()).add(buffer);
+   }
+
+   public long getNumAllocated() {
+      return numAllocated_.get();
+   }
+
+   public long getNumReused() {
+      return numReused_.get();
+   }
+
+}
@@ -5,12 +5,21 @@
  */
 package org.micromanager.internal.zmq;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import mmcorej.org.json.JSONException;
 import mmcorej.org.json.JSONObject;
 import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+import zmq.Msg;
+import zmq.msg.MsgAllocator;
 
 /**
  * Does not run on its own thread
@@ -18,9 +27,24 @@ import org.zeromq.SocketType;
  */
 public class ZMQPullSocket<T> extends ZMQSocketWrapper {
    
-   Function<JSONObject, T> deserializationFunction_;
+   //timed waits longer than this sleep between checks instead of spinning
+   private static final long POLL_SLEEP_THRESHOLD_NS = TimeUnit.MILLISECONDS.toNanos(1);
+   private static final long POLL_SLEEP_NS = TimeUnit.MICROSECONDS.toNanos(50);
+
+   BiFunction<JSONObject, List<byte[]>, T> deserializationFunction_;
 
    public ZMQPullSocket(Function<JSONObject, T> deserializationFunction) {
+      this((JSONObject json, List<byte[]> binaryFrames) -> deserializationFunction.apply(json));
+   }
+
+   /**
+    * Pull socket for messages that may carry raw binary data. Frame 0 of each
+    * message is JSON, and any further frames of a multipart message are passed
+    * to the deserialization function as byte arrays (empty list if none)
+    *
+    * @param deserializationFunction
+    */
+   public ZMQPullSocket(BiFunction<JSONObject, List<byte[]>, T> deserializationFunction) {
       super(SocketType.PULL);
       deserializationFunction_ = deserializationFunction;
    }
@@ -33,11 +57,70 @@ public class ZMQPullSocket<T> extends ZMQSocketWrapper {
    }
 
 
+   /**
+    * Bind rather than connect to the port, so that any number of pushing
+    * sockets can connect to this one
+    */
+   public void bind() {
+      socket_.disconnect("tcp://127.0.0.1:" + port_);
+      socket_.bind("tcp://127.0.0.1:" + port_);
+   }
+
+   /**
+    * Receive messages of at least minSize bytes into arrays taken from the
+    * pool rather than newly allocated ones. Whoever deserializes them can
+    * give the arrays back once done with them
+    *
+    * @param pool
+    * @param minSize smaller messages are allocated as usual
+    */
+   public void setBufferPool(BufferPool pool, int minSize) {
+      socket_.setMsgAllocator(new MsgAllocator() {
+         @Override
+         public Msg allocate(int size) {
+            return size >= minSize ? new Msg(pool.take(size)) : new Msg(size);
+         }
+      });
+   }
+
    public T next() {
+      return deserialize(socket_.recv());
+   }
+
+   /**
+    * Wait only a limited time for the next message. Short timeouts spin rather
+    * than sleep, so they can be on the scale of microseconds
+    *
+    * @param timeoutNs timeout in nanoseconds
+    * @return the next message, or null if none arrived in time
+    */
+   public T next(long timeoutNs) {
+      long deadline = System.nanoTime() + timeoutNs;
+      while (true) {
+         byte[] message = socket_.recv(ZMQ.DONTWAIT);
+         if (message != null) {
+            return deserialize(message);
+         }
+         long remaining = deadline - System.nanoTime();
+         if (remaining <= 0) {
+            return null;
+         } else if (remaining > POLL_SLEEP_THRESHOLD_NS) {
+            LockSupport.parkNanos(POLL_SLEEP_NS);
+         } else {
+            //leave the CPU to the ZMQ IO thread if it needs it
+            Thread.yield();
+         }
+      }
+   }
+
+   private T deserialize(byte[] message) {
       try {
-         String message = new String(socket_.recv());
-         JSONObject json = new JSONObject(message);
-         return (T) deserializationFunction_.apply(json);
+         JSONObject json = new JSONObject(new String(message, StandardCharsets.UTF_8));
+         List<byte[]> binaryFrames = new ArrayList<byte[]>();
+         while (socket_.hasReceiveMore()) {
+            binaryFrames.add(socket_.recv());
+         }
+         return (T) deserializationFunction_.apply(json, binaryFrames);
       } catch (JSONException ex) {
          ex.printStackTrace();
          throw new RuntimeException("problem deserializing");
@@ -5,11 +5,16 @@
  */
 package org.micromanager.internal.zmq;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 import mmcorej.org.json.JSONObject;
 import static org.micromanager.internal.zmq.ZMQSocketWrapper.context_;
 import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
 
 /**
  *
@@ -17,10 +22,22 @@ import org.zeromq.SocketType;
  */
 public class ZMQPushSocket<T> extends ZMQSocketWrapper {
 
-   private Function<T, JSONObject> serializationFn_;
+   private BiFunction<T, List<byte[]>, JSONObject> serializationFn_;
 
    //Constructor for server the base class that runs on its own thread
    public ZMQPushSocket(Function<T, JSONObject> serializationFn) {
+      this((T t, List<byte[]> binaryFrames) -> serializationFn.apply(t));
+   }
+
+   /**
+    * Push socket whose messages can carry raw binary data. The serialization
+    * function returns the JSON part of the message, and may add byte arrays to
+    * the supplied list. Each of these gets sent as an additional frame of a
+    * multipart message, following the JSON in frame 0
+    *
+    * @param serializationFn
+    */
+   public ZMQPushSocket(BiFunction<T, List<byte[]>, JSONObject> serializationFn) {
       super(SocketType.PUSH);
       serializationFn_ = serializationFn;
    }
@@ -45,9 +62,18 @@ public class ZMQPushSocket<T> extends ZMQSocketWrapper {
     * @param o
     */
    public void push(T o) {
-      JSONObject json = serializationFn_.apply(o);
-      String s = json.toString();
-      socket_.send(s);
+      List<byte[]> binaryFrames = new ArrayList<byte[]>();
+      JSONObject json = serializationFn_.apply(o, binaryFrames);
+      byte[] message = json.toString().getBytes(StandardCharsets.UTF_8);
+      if (binaryFrames.isEmpty()) {
+         socket_.send(message);
+      } else {
+         socket_.sendMore(message);
+         for (int i = 0; i < binaryFrames.size(); i++) {
+            //byte arrays are handed to ZMQ as is, no copy
+            socket_.send(binaryFrames.get(i), i == binaryFrames.size() - 1 ? 0 : ZMQ.SNDMORE);
+         }
+      }
 
 //      return executor_.submit(() -> {
 //         socket_.send(serializationFn_.apply(o).toString());
@@ -11,15 +11,22 @@ import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import mmcorej.org.json.JSONArray;
 import mmcorej.org.json.JSONException;
 import mmcorej.org.json.JSONObject;
 import static org.micromanager.internal.zmq.ZMQUtil.EXTERNAL_OBJECTS;
 
 import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
 
 /**
  * implements request reply server (ie the reply part)
@@ -29,14 +36,25 @@ import org.zeromq.SocketType;
 public class ZMQServer extends ZMQSocketWrapper {
 
    private ExecutorService executor_;
+   //No initializers on these, since initialize is called from the superclass
+   //constructor, before initializers would run
+   private List<ZMQ.Socket> workerSockets_;
+   private List<AtomicBoolean> workerStops_;
+   private volatile int numWorkerThreads_;
+   private int numWorkersStarted_;
 //   protected static Set<Class> apiClasses_;
-   private static Set<String> packages_;
+   private static final Pattern HASH_CODE_PATTERN = Pattern.compile("\"hash-code\"\\s*:\\s*\"?([^\",}\\s]+)");
+   private static final Pattern REQUEST_ID_PATTERN = Pattern.compile("\"request-id\"\\s*:\\s*(-?\\d+)");
    private static ZMQUtil util_;
 
    public static final String VERSION = "2.7.0";
 
+   private static final ConcurrentHashMap<MethodSignature, Method> METHOD_CACHE
+           = new ConcurrentHashMap<MethodSignature, Method>();
+
    private static Function<Class, Object> classMapper_;
    private static ZMQServer masterServer_;
+   private static final int RESIZE_POLL_MS = 100;
    static boolean debug_ = false;
 
    //for testing
@@ -68,80 +86,282 @@ public class ZMQServer extends ZMQSocketWrapper {
       super(SocketType.REP);
       classMapper_ = classMapper;
       util_ = new ZMQUtil(cls, excludePaths);
-
-      //get packages for current classloader (redundant?)
-      packages_ = ZMQUtil.getPackages();
-      for (ClassLoader cl : cls) {
-         packages_.addAll(ZMQUtil.getPackagesFromJars((URLClassLoader) cl));
-      }
    }
 
    public static ZMQServer getMasterServer() {
       return masterServer_;
    }
 
+   /**
+    * Set the number of threads that handle requests on this server. With more
+    * than one, a slow call (e.g. core.snapImage()) doesn't block requests on
+    * other objects. Requests on the same object are always handled by the same
+    * worker, in the order they arrived. Can be called while the server is
+    * running (e.g. on getMasterServer()): the change is made once the requests
+    * already handed to workers have been answered
+    *
+    * @param numThreads
+    */
+   public void setNumWorkerThreads(int numThreads) {
+      numWorkerThreads_ = Math.max(1, numThreads);
+   }
+
+   public int getNumWorkerThreads() {
+      return numWorkerThreads_;
+   }
+
    @Override
    public void initialize(int port) {
       // Can we be initialized multiple times?  If so, we should cleanup
       // the multiple instances of executors and sockets cleanly
-      executor_ = Executors.newSingleThreadExecutor(
+      numWorkerThreads_ = 1;
+      workerSockets_ = new ArrayList<ZMQ.Socket>();
+      workerStops_ = new ArrayList<AtomicBoolean>();
+      //one thread passing requests between clients and workers, plus the workers
+      executor_ = Executors.newCachedThreadPool(
               (Runnable r) -> new Thread(r, "ZMQ Server "));
       executor_.submit(() -> {
-         socket_ = context_.createSocket(type_);
+         socket_ = context_.createSocket(SocketType.ROUTER);
          port_ = port;
          socket_.bind("tcp://127.0.0.1:" + port);
+         dispatch(port);
+      });
+   }
 
-         //Master request-reply loop
-         while (true) {
-            String message = socket_.recvStr();
-            if (debug_) {
-               System.out.println("Recieved message: \t" + message);
+   /**
+    * Pass requests from clients to the workers and replies back. Every request
+    * on a given object goes to the same worker, which handles them one at a
+    * time in the order they arrived, so pipelined calls on one object still
+    * run in order while calls on different objects run at the same time.
+    * Requests not on an existing object (e.g. constructors) go to the workers
+    * in turn
+    */
+   private void dispatch(int port) {
+      List<ZMQ.Socket> workers = workerSockets_;
+      int[] inFlight = new int[0];
+      int totalInFlight = 0;
+      int nextWorker = 0;
+      ZMQ.Poller poller = null;
+      //same as poller, minus the client socket, for waiting out a resize
+      ZMQ.Poller workersPoller = null;
+      while (!Thread.currentThread().isInterrupted()) {
+         int numWorkers = numWorkerThreads_;
+         if (numWorkers != workers.size() && totalInFlight == 0) {
+            //Nothing is waiting on a worker, so objects can be moved to
+            //different workers without their requests getting out of order
+            resizeWorkers(workers, numWorkers, port);
+            inFlight = new int[numWorkers];
+            nextWorker = 0;
+            if (poller != null) {
+               poller.close();
+               workersPoller.close();
             }
-            byte[] reply = null;
+            poller = context_.createPoller(numWorkers + 1);
+            workersPoller = context_.createPoller(numWorkers);
+            for (ZMQ.Socket worker : workers) {
+               poller.register(worker, ZMQ.Poller.POLLIN);
+               workersPoller.register(worker, ZMQ.Poller.POLLIN);
+            }
+            poller.register(socket_, ZMQ.Poller.POLLIN);
+         }
+         boolean resizing = numWorkers != workers.size();
+         ZMQ.Poller active = resizing ? workersPoller : poller;
+         if (active.poll(RESIZE_POLL_MS) < 0) {
+            break;
+         }
+         for (int i = 0; i < workers.size(); i++) {
+            if (active.pollin(i)) {
+               sendFrames(socket_, receiveFrames(workers.get(i)));
+               inFlight[i]--;
+               totalInFlight--;
+            }
+         }
+         if (!resizing && poller.pollin(workers.size())) {
+            //routing id(s), empty delimiter, request
+            List<byte[]> frames = receiveFrames(socket_);
+            int index;
+            String hashCode = findHashCode(requestFrame(frames));
+            if (hashCode != null) {
+               index = Math.floorMod(hashCode.hashCode(), workers.size());
+            } else {
+               index = nextWorker;
+               nextWorker = (nextWorker + 1) % workers.size();
+            }
+            sendFrames(workers.get(index), frames);
+            inFlight[index]++;
+            totalInFlight++;
+         }
+      }
+   }
+
+   /**
+    * Start or stop worker threads so there are numWorkers of them. Must only be
+    * called when no worker has a request in flight
+    */
+   private void resizeWorkers(List<ZMQ.Socket> workers, int numWorkers, int port) {
+      while (workers.size() < numWorkers) {
+         //inproc addresses aren't reused, since unbinding them is asynchronous
+         String address = "inproc://zmq-server-workers-" + port + "-" + numWorkersStarted_++;
+         ZMQ.Socket dealer = context_.createSocket(SocketType.DEALER);
+         dealer.bind(address);
+         workers.add(dealer);
+         AtomicBoolean stop = new AtomicBoolean();
+         workerStops_.add(stop);
+         executor_.submit(() -> {
+            ZMQ.Socket worker = context_.createSocket(SocketType.REP);
+            worker.connect(address);
+            runReplyLoop(worker, stop);
+            worker.close();
+         });
+      }
+      while (workers.size() > numWorkers) {
+         //wake the worker up with an empty request to see it's been stopped
+         workerStops_.remove(workerStops_.size() - 1).set(true);
+         ZMQ.Socket dealer = workers.remove(workers.size() - 1);
+         dealer.sendMore(new byte[0]);
+         dealer.send(new byte[0]);
+         dealer.setLinger(RESIZE_POLL_MS);
+         dealer.close();
+      }
+   }
+
+   private static List<byte[]> receiveFrames(ZMQ.Socket socket) {
+      List<byte[]> frames = new ArrayList<byte[]>();
+      do {
+         frames.add(socket.recv());
+      } while (socket.hasReceiveMore());
+      return frames;
+   }
+
+   private static void sendFrames(ZMQ.Socket socket, List<byte[]> frames) {
+      for (int i = 0; i < frames.size(); i++) {
+         socket.send(frames.get(i), i == frames.size() - 1 ? 0 : ZMQ.SNDMORE);
+      }
+   }
+
+   /**
+    * @return the first frame after the empty delimiter that ends the envelope
+    */
+   private static byte[] requestFrame(List<byte[]> frames) {
+      for (int i = 0; i < frames.size() - 1; i++) {
+         if (frames.get(i).length == 0) {
+            return frames.get(i + 1);
+         }
+      }
+      return frames.get(frames.size() - 1);
+   }
+
+   private void runReplyLoop(ZMQ.Socket socket, AtomicBoolean stop) {
+      //Master request-reply loop
+      while (true) {
+         byte[] message = socket.recv();
+         if (stop.get()) {
+            return;
+         }
+         if (debug_) {
+            System.out.println("Recieved message: \t" + new String(message, StandardCharsets.UTF_8));
+         }
+         JSONObject request = null;
+         JSONObject reply = null;
+         List<byte[]> binaryFrames = new ArrayList<byte[]>();
+         try {
+            request = new JSONObject(new String(message, StandardCharsets.UTF_8));
+            reply = parseAndExecuteCommand(request, binaryFrames);
+         } catch (Exception e) {
+            binaryFrames.clear();
             try {
-               reply = parseAndExecuteCommand(message);
-            } catch (Exception e) {
-               try {
-                  JSONObject json = new JSONObject();
-                  json.put("type", "exception");
+               reply = new JSONObject();
+               reply.put("type", "exception");
 
-                  StringWriter sw = new StringWriter();
-                  e.printStackTrace(new PrintWriter(sw));
-                  String exceptionAsString = sw.toString();
-                  json.put("value", exceptionAsString);
+               StringWriter sw = new StringWriter();
+               e.printStackTrace(new PrintWriter(sw));
+               String exceptionAsString = sw.toString();
+               reply.put("value", exceptionAsString);
 
-                  reply = json.toString().getBytes();
-                  e.printStackTrace();
+               e.printStackTrace();
 
-               } catch (JSONException ex) {
-                  throw new RuntimeException(ex);
-                  // This wont happen          
-               }
+            } catch (JSONException ex) {
+               throw new RuntimeException(ex);
+               // This wont happen          
             }
-            if (debug_) {
-               System.out.println("Sending message: \t" + new String(reply));
-            }
-            socket_.send(reply);
-            if (debug_) {
-               System.out.println("Message sent");
+         }
+         try {
+            //Clients with many requests in flight (e.g. over a DEALER socket)
+            //tag each one so they can match up replies that arrive out of order
+            if (request != null && request.has("request-id")) {
+               reply.put("request-id", request.get("request-id"));
+            } else if (request == null) {
+               //couldn't be decoded, but the client still needs the id to match the error up
+               Long requestId = findRequestId(message);
+               if (requestId != null) {
+                  reply.put("request-id", requestId);
+               }
             }
+         } catch (JSONException ex) {
+            throw new RuntimeException(ex);
          }
-      });
+         byte[] replyBytes = reply.toString().getBytes(StandardCharsets.UTF_8);
+         if (debug_) {
+            System.out.println("Sending message: \t" + new String(replyBytes, StandardCharsets.UTF_8));
+         }
+         socket.send(replyBytes, binaryFrames.isEmpty() ? 0 : ZMQ.SNDMORE);
+         for (int i = 0; i < binaryFrames.size(); i++) {
+            socket.send(binaryFrames.get(i), i == binaryFrames.size() - 1 ? 0 : ZMQ.SNDMORE);
+         }
+         if (debug_) {
+            System.out.println("Message sent");
+         }
+      }
+   }
+
+   /**
+    * Read the hash code of the object a request is on straight out of its raw
+    * text, so it can be routed without decoding the whole request. For a batch
+    * of calls this is the object of the first one
+    *
+    * @return the hash code, or null if there isn't one
+    */
+   private static String findHashCode(byte[] message) {
+      Matcher matcher = HASH_CODE_PATTERN.matcher(new String(message, StandardCharsets.UTF_8));
+      return matcher.find() ? matcher.group(1) : null;
+   }
+
+   /**
+    * Read the request id straight out of the raw text of a message, for
+    * messages that aren't valid JSON
+    *
+    * @return the id, or null if there isn't one
+    */
+   private static Long findRequestId(byte[] message) {
+      Matcher matcher = REQUEST_ID_PATTERN.matcher(new String(message, StandardCharsets.UTF_8));
+      if (!matcher.find()) {
+         return null;
+      }
+      try {
+         return Long.parseLong(matcher.group(1));
+      } catch (NumberFormatException e) {
+         return null;
+      }
    }
 
    public void close() {
       if (executor_ != null) {
          executor_.shutdownNow();
          socket_.close();
+         if (workerSockets_ != null) {
+            for (ZMQ.Socket worker : workerSockets_) {
+               worker.close();
+            }
+         }
       }
    }
 
-   protected byte[] getField(Object obj, JSONObject json) throws JSONException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
+   protected JSONObject getField(Object obj, JSONObject json, List<byte[]> binaryFrames) throws JSONException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
       String fieldName = json.getString("name");
       Object field = obj.getClass().getField(fieldName).get(obj);
       JSONObject serialized = new JSONObject();
-      util_.serialize(field, serialized, port_);
-      return serialized.toString().getBytes();
+      serialize(field, json, serialized, binaryFrames);
+      return serialized;
    }
    
    protected void setField(Object obj, JSONObject json) throws JSONException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
@@ -153,9 +373,13 @@ public class ZMQServer extends ZMQSocketWrapper {
       obj.getClass().getField(fieldName).set(obj, val);
    }
 
-   private LinkedList<LinkedList<Class>> getParamCombos(JSONObject message, Object[] argVals) throws JSONException,
-           UnsupportedEncodingException {
-
+   /**
+    * Convert the arguments of a request to java values, and return the
+    * class of each argument. Entries for javashadow objects are left null,
+    * since the parameter type they match may be any of their superclasses or
+    * interfaces (see getParamCombos)
+    */
+   private Object[] parseArguments(JSONObject message, Object[] argVals) throws JSONException {
       Object[] argClasses = new Object[message.getJSONArray("arguments").length()];
       for (int i = 0; i < argVals.length; i++) {
 //         Class c = message.getJSONArray("arguments").get(i).getClass();
@@ -164,31 +388,6 @@ public class ZMQServer extends ZMQSocketWrapper {
             //Passed in a javashadow object as an argument
             argVals[i] = EXTERNAL_OBJECTS.get(
                     message.getJSONArray("arguments").getJSONObject(i).get("hash-code"));
-            //abstract to superclasses/interfaces in the API
-            Set<String> potentialPackages = new TreeSet<String>();
-            Class clazz = argVals[i].getClass();
-            while (clazz.getSuperclass() != null) {
-               for (Class c : clazz.getInterfaces()){
-                  potentialPackages.add(c.getPackage().getName());
-               }
-               potentialPackages.add(clazz.getPackage().getName());
-               clazz = clazz.getSuperclass();
-            }
-            //build up a list of valid packages
-            Set<Class> apiClasses = new HashSet<Class>();
-            for (String packageName : potentialPackages) {
-               apiClasses.addAll(util_.getPackageClasses(packageName));
-            }
-
-            ParamSet<Class> potentialClasses = new ParamSet<Class>();
-            for (Class apiClass : apiClasses) {
-               if (apiClass.isAssignableFrom(argVals[i].getClass())) {
-                  potentialClasses.add(apiClass);
-               }
-            }
-            //add the class itself. This is needed for java internal classes
-            potentialClasses.add(argVals[i].getClass());
-            argClasses[i] = potentialClasses;
          } else if (ZMQUtil.PRIMITIVE_NAME_CLASS_MAP.containsKey(message.getJSONArray("argument-types").get(i))) {
             argClasses[i] = ZMQUtil.PRIMITIVE_NAME_CLASS_MAP.get(
                     message.getJSONArray("argument-types").get(i));         
@@ -207,6 +406,23 @@ public class ZMQServer extends ZMQSocketWrapper {
             argVals[i] = message.getJSONArray("arguments").get(i);
          }
       }
+      return argClasses;
+   }
+
+   private LinkedList<LinkedList<Class>> getParamCombos(JSONObject message, Object[] argClasses, Object[] argVals)
+           throws JSONException, UnsupportedEncodingException {
+      argClasses = argClasses.clone();
+      for (int i = 0; i < argVals.length; i++) {
+         if (message.getJSONArray("arguments").get(i) instanceof JSONObject
+                 && message.getJSONArray("arguments").getJSONObject(i).has("hash-code")) {
+            //abstract to superclasses/interfaces in the API
+            ParamSet<Class> potentialClasses = new ParamSet<Class>();
+            potentialClasses.addAll(util_.getAPISupertypes(argVals[i].getClass()));
+            //add the class itself. This is needed for java internal classes
+            potentialClasses.add(argVals[i].getClass());
+            argClasses[i] = potentialClasses;
+         }
+      }
 
       //Generate every possible combination of parameters given multiple interfaces for classes
       //so that the correct method can be located
@@ -250,8 +466,8 @@ public class ZMQServer extends ZMQSocketWrapper {
            IllegalArgumentException, InvocationTargetException, UnsupportedEncodingException {
 
       Object[] argVals = new Object[message.getJSONArray("arguments").length()];
-
-      LinkedList<LinkedList<Class>> paramCombos = getParamCombos(message, argVals);
+      Object[] argClasses = parseArguments(message, argVals);
+      LinkedList<LinkedList<Class>> paramCombos = getParamCombos(message, argClasses, argVals);
 
       Constructor mathcingConstructor = null;
       if (paramCombos.isEmpty()) { //Constructor with no argumetns
@@ -278,34 +494,53 @@ public class ZMQServer extends ZMQSocketWrapper {
       return mathcingConstructor.newInstance(argVals);
    }
 
-   private byte[] runMethod(Object obj, JSONObject message) throws NoSuchMethodException, IllegalAccessException,
-           JSONException, UnsupportedEncodingException {
+   /**
+    * Serialize the result of a request. Clients that can read arrays from raw
+    * binary frames, or that look up class APIs by their id, ask for it on each
+    * request
+    */
+   private void serialize(Object o, JSONObject request, JSONObject reply, List<byte[]> binaryFrames)
+           throws JSONException {
+      boolean binaryArrays = request.has("binary-arrays") && request.getBoolean("binary-arrays");
+      boolean apiByReference = request.has("api-by-reference") && request.getBoolean("api-by-reference");
+      util_.serialize(o, reply, port_, binaryArrays ? binaryFrames : null, apiByReference);
+   }
+
+   private JSONObject runMethod(Object obj, JSONObject message, List<byte[]> binaryFrames) throws NoSuchMethodException,
+           IllegalAccessException, JSONException, UnsupportedEncodingException {
       String methodName = message.getString("name");
       Object[] argVals = new Object[message.getJSONArray("arguments").length()];
-      LinkedList<LinkedList<Class>> paramCombos = getParamCombos(message, argVals);
+      Object[] argClasses = parseArguments(message, argVals);
 
-      Method matchingMethod = null;
-      if (paramCombos.isEmpty()) {
-         //0 argument funtion
-         matchingMethod = obj.getClass().getMethod(methodName);
-      } else {
-         for (LinkedList<Class> argList : paramCombos) {
-            Class[] classArray = argList.stream().toArray(Class[]::new);
-            try {
-               matchingMethod = obj.getClass().getMethod(methodName, classArray);
-               break;
-            } catch (NoSuchMethodException e) {
-               //ignore
+      //Searching through the possible parameter types is slow, so remember
+      //which method each combination of receiver and argument types resolved to
+      MethodSignature signature = new MethodSignature(obj.getClass(), methodName, argClasses, argVals);
+      Method matchingMethod = METHOD_CACHE.get(signature);
+      if (matchingMethod == null) {
+         LinkedList<LinkedList<Class>> paramCombos = getParamCombos(message, argClasses, argVals);
+         if (paramCombos.isEmpty()) {
+            //0 argument funtion
+            matchingMethod = obj.getClass().getMethod(methodName);
+         } else {
+            for (LinkedList<Class> argList : paramCombos) {
+               Class[] classArray = argList.stream().toArray(Class[]::new);
+               try {
+                  matchingMethod = obj.getClass().getMethod(methodName, classArray);
+                  break;
+               } catch (NoSuchMethodException e) {
+                  //ignore
+               }
             }
          }
-      }
-      if (matchingMethod == null) {
-         throw new RuntimeException("No Matching method found with argumetn types");
+         if (matchingMethod == null) {
+            throw new RuntimeException("No Matching method found with argumetn types");
+         }
+         matchingMethod.setAccessible(true); //this is needed to call public methods on private classes
+         METHOD_CACHE.put(signature, matchingMethod);
       }
 
       Object result;
       try {
-         matchingMethod.setAccessible(true); //this is needed to call public methods on private classes
          result = matchingMethod.invoke(obj, argVals);
       } catch (InvocationTargetException ex) {
          ex.printStackTrace();
@@ -313,12 +548,42 @@ public class ZMQServer extends ZMQSocketWrapper {
       }
 
       JSONObject serialized = new JSONObject();
-      util_.serialize(result, serialized, port_);
-      return serialized.toString().getBytes();
+      serialize(result, message, serialized, binaryFrames);
+      return serialized;
    }
 
-   protected byte[] parseAndExecuteCommand(String message) throws Exception {
-      JSONObject request = new JSONObject(message);
+   /**
+    * Replace arguments that refer to the result of an earlier call in a
+    * "run-methods" request with that result, in the same form as arguments
+    * sent by the client
+    */
+   private void substituteResults(JSONObject method, JSONArray results) throws JSONException {
+      JSONArray args = method.getJSONArray("arguments");
+      for (int i = 0; i < args.length(); i++) {
+         if (args.get(i) instanceof JSONObject && args.getJSONObject(i).has("result-index")) {
+            JSONObject result = results.getJSONObject(args.getJSONObject(i).getInt("result-index"));
+            if (result.has("hash-code")) {
+               JSONObject shadow = new JSONObject();
+               shadow.put("hash-code", result.getString("hash-code"));
+               args.put(i, shadow);
+            } else if (result.getString("type").equals("none")) {
+               args.put(i, JSONObject.NULL);
+            } else if (result.getString("type").equals("primitive")
+                    || result.getString("type").equals("string")) {
+               args.put(i, result.get("value"));
+            } else {
+               throw new RuntimeException("Result of type " + result.getString("type")
+                       + " can't be used as an argument");
+            }
+         }
+      }
+   }
+
+   /**
+    * Execute a request and return the JSON reply. Any raw binary frames that
+    * should follow the reply are added to binaryFrames
+    */
+   protected JSONObject parseAndExecuteCommand(JSONObject request, List<byte[]> binaryFrames) throws Exception {
       JSONObject reply;
       switch (request.getString("command")) {
          case "connect": {//Connect to master server
@@ -328,14 +593,23 @@ public class ZMQServer extends ZMQSocketWrapper {
             reply = new JSONObject();
             reply.put("type", "none");
             reply.put("version", VERSION);
-            return reply.toString().getBytes();
+            return reply;
          }
          case "get-constructors": {
             String classpath = request.getString("classpath");
             reply = new JSONObject();
             reply.put("type", "none");
             reply.put("api", ZMQUtil.parseConstructors(classpath, classMapper_));
-            return reply.toString().getBytes();
+            return reply;
+         }
+         case "get-class-api": {
+            JSONObject descriptor = util_.getClassDescriptor(request.getInt("class-id"));
+            reply = new JSONObject();
+            reply.put("type", "none");
+            for (String key : new String[]{"class-id", "interfaces", "fields", "api"}) {
+               reply.put(key, descriptor.get(key));
+            }
+            return reply;
          }
          case "constructor": { //construct a new object (or grab an exisitng instance)
             Class baseClass = util_.loadClass(request.getString("classpath"));
@@ -356,18 +630,34 @@ public class ZMQServer extends ZMQSocketWrapper {
                new ZMQServer();
             }
             reply = new JSONObject();
-            util_.serialize(instance, reply, port_);
-            return reply.toString().getBytes();
+            serialize(instance, request, reply, binaryFrames);
+            return reply;
          }
          case "run-method": {
             String hashCode = request.getString("hash-code");
             Object target = EXTERNAL_OBJECTS.get(hashCode);
-            return runMethod(target, request);
+            return runMethod(target, request, binaryFrames);
+         }
+         case "run-methods": {
+            //Several method calls in one request, run in order. An argument of
+            //the form {"result-index": i} is the result of the i-th call
+            JSONArray methods = request.getJSONArray("methods");
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < methods.length(); i++) {
+               JSONObject method = methods.getJSONObject(i);
+               substituteResults(method, results);
+               Object target = EXTERNAL_OBJECTS.get(method.getString("hash-code"));
+               results.put(runMethod(target, method, binaryFrames));
+            }
+            reply = new JSONObject();
+            reply.put("type", "list");
+            reply.put("value", results);
+            return reply;
          }
          case "get-field": {
             String hashCode = request.getString("hash-code");
             Object target = EXTERNAL_OBJECTS.get(hashCode);
-            return getField(target, request);
+            return getField(target, request, binaryFrames);
          }
          case "set-field": {
             String hashCode = request.getString("hash-code");
@@ -375,7 +665,7 @@ public class ZMQServer extends ZMQSocketWrapper {
             setField(target, request);
             reply = new JSONObject();
             reply.put("type", "none");
-            return reply.toString().getBytes();
+            return reply;
          }
          case "destructor": {
             String hashCode = request.getString("hash-code");
@@ -385,7 +675,7 @@ public class ZMQServer extends ZMQSocketWrapper {
             reply = new JSONObject();
 
             reply.put("type", "none");
-            return reply.toString().getBytes();
+            return reply;
          }
          default:
             break;
@@ -398,3 +688,40 @@ public class ZMQServer extends ZMQSocketWrapper {
 class ParamSet<E> extends HashSet<E> {
 
 }
+
+/**
+ * Key for the cache of resolved methods: the class of the object the method is
+ * called on, the method name, and the class of each argument
+ */
+class MethodSignature {
+
+   private final Class receiver_;
+   private final String name_;
+   private final Object[] argTypes_;
+
+   MethodSignature(Class receiver, String name, Object[] argClasses, Object[] argVals) {
+      receiver_ = receiver;
+      name_ = name;
+      argTypes_ = new Object[argClasses.length];
+      for (int i = 0; i < argClasses.length; i++) {
+         //javashadow objects are identified by their actual class
+         argTypes_[i] = argClasses[i] != null ? argClasses[i]
+                 : (argVals[i] == null ? null : argVals[i].getClass());
+      }
+   }
+
+   @Override
+   public boolean equals(Object o) {
+      if (!(o instanceof MethodSignature)) {
+         return false;
+      }
+      MethodSignature other = (MethodSignature) o;
+      return receiver_.equals(other.receiver_) && name_.equals(other.name_)
+              && Arrays.equals(argTypes_, other.argTypes_);
+   }
+
+   @Override
+   public int hashCode() {
+      return 31 * (31 * receiver_.hashCode() + name_.hashCode()) + Arrays.hashCode(argTypes_);
+   }
+}
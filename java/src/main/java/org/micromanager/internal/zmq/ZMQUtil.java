@@ -10,9 +10,13 @@ import java.lang.reflect.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -21,6 +25,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -28,8 +33,6 @@ import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import mmcorej.org.json.JSONArray;
 import mmcorej.org.json.JSONException;
@@ -44,7 +47,12 @@ public class ZMQUtil {
 
     private static Collection<ClassLoader> classLoaders_;
     private String[] excludedPaths_;
-    private HashMap<String, Set<Class>> packageAPIClasses_ = new HashMap<String, Set<Class>>();
+    private ConcurrentHashMap<String, Set<Class>> packageAPIClasses_ = new ConcurrentHashMap<String, Set<Class>>();
+   private final ConcurrentHashMap<Class, Set<Class>> apiSupertypes_ = new ConcurrentHashMap<Class, Set<Class>>();
+   private final ConcurrentHashMap<Class, JSONObject> classDescriptors_
+           = new ConcurrentHashMap<Class, JSONObject>();
+   private final ConcurrentHashMap<Integer, JSONObject> classDescriptorsById_
+           = new ConcurrentHashMap<Integer, JSONObject>();
 
    //TODO: associtate entries in here with a prticular client
    //map of objects that exist in some client of the server
@@ -111,6 +119,9 @@ public class ZMQUtil {
    }
 
    private static final ByteOrder BYTE_ORDER = ByteOrder.BIG_ENDIAN;
+   //Raw binary frames use native byte order of the python side so that
+   //they can be read directly with numpy
+   public static final ByteOrder BINARY_FRAME_BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
 
    protected static Object deserialize(byte[] message, Function<JSONObject, ?> deserializationFn) {
       try {
@@ -156,20 +167,8 @@ public class ZMQUtil {
             json.put("type", "object");
             json.put("class", "JSONObject");
             json.put("value", o.toString());
-         } else if (o.getClass().equals(byte[].class)) {
-            json.put("type", "byte-array");
-            json.put("value", encodeArray(o));
-         } else if (o.getClass().equals(short[].class)) {
-            json.put("type", "short-array");
-            json.put("value", encodeArray(o));
-         } else if (o.getClass().equals(double[].class)) {
-            json.put("type", "double-array");
-            json.put("value", encodeArray(o));
-         } else if (o.getClass().equals(int[].class)) {
-            json.put("type", "int-array");
-            json.put("value", encodeArray(o));
-         } else if (o.getClass().equals(float[].class)) {
-            json.put("type", "float-array");
+         } else if (getArrayTypeName(o) != null) {
+            json.put("type", getArrayTypeName(o));
             json.put("value", encodeArray(o));
          } else {
             return null;
@@ -189,8 +188,41 @@ public class ZMQUtil {
     * null
     */
    public void serialize(Object o, JSONObject json, int port) {
+      serialize(o, json, port, null);
+   }
+
+   /**
+    * Same as above, but if binaryFrames is not null, arrays of primitives are
+    * added to it as raw bytes to be sent as separate message frames, and only
+    * a description of them goes in the JSON
+    *
+    * @param o Object to be serialized
+    * @param json JSONObject that will contain the serialized Object can not be
+    * null
+    * @param port
+    * @param binaryFrames list of frames to follow the JSON frame, or null to
+    * Base64 encode arrays in the JSON
+    */
+   public void serialize(Object o, JSONObject json, int port, List<byte[]> binaryFrames) {
+      serialize(o, json, port, binaryFrames, false);
+   }
+
+   /**
+    * Same as above, but if apiByReference is true, objects that are sent out
+    * unserialized only carry a "class-id" in place of the description of their
+    * interfaces, fields, and methods. Clients that have not yet seen the class
+    * can look it up with getClassDescriptor
+    */
+   public void serialize(Object o, JSONObject json, int port, List<byte[]> binaryFrames,
+                         boolean apiByReference) {
       try {
-         JSONObject converted = toJSON(o);
+         JSONObject converted;
+         if (binaryFrames != null && getArrayTypeName(o) != null) {
+            binaryFrames.add(toByteArray(o, BINARY_FRAME_BYTE_ORDER));
+            converted = toBinaryJSON(o, binaryFrames.size());
+         } else {
+            converted = toJSON(o);
+         }
          if (converted != null) {
             //Can be driectly converted into a serialized object (i.e. primitive)--copy into
             converted.keys().forEachRemaining(new Consumer<String>() {
@@ -218,54 +250,97 @@ public class ZMQUtil {
             json.put("hash-code", hash);
             json.put("port", port);
 
-            ArrayList<Class> apiInterfaces = new ArrayList<>();
-            if (o.getClass().getName().startsWith("java")) {
-               //Java classes
-               for (Class c : o.getClass().getInterfaces()) {
-                  apiInterfaces.add(c);
-               }
-               apiInterfaces.add(o.getClass());
-            } else {
-               //Non Java classes. Check to make sure only exposing things we mean to
-               Set<String> packageNames = new HashSet<String>();
-               //Search through all superclasses and interfaces
-               Class clazz = o.getClass();
-               do {
-                  apiInterfaces.add(clazz);
-                  for (Class inter : clazz.getInterfaces()) {
-                     apiInterfaces.add(inter);
-                     recursiveAddInterfaces(apiInterfaces, inter);
-                  }
-                  clazz = clazz.getSuperclass();
-               } while (clazz != null);
+            JSONObject descriptor = getClassDescriptor(o.getClass());
+            json.put("class-id", descriptor.getInt("class-id"));
+            if (!apiByReference) {
+               json.put("interfaces", descriptor.get("interfaces"));
+               json.put("fields", descriptor.get("fields"));
+               json.put("api", descriptor.get("api"));
             }
+         }
+      } catch (JSONException e) {
+         throw new RuntimeException(e);
+      }
+   }
 
-            if (apiInterfaces.isEmpty()) {
-               throw new RuntimeException("Couldn't find " + o.getClass().getName()
-                       + " on classpath, or this is an internal class that was accidentally exposed");
-            }
-            //List all API interfaces this class implments in case its passed
-            //back as an argument to another function
-            JSONArray e = new JSONArray();
-            json.put("interfaces", e);
-            for (Class c : apiInterfaces) {
-               e.put(c.getName());
-            }
+   /**
+    * Get the description of a class previously sent out by reference
+    *
+    * @param classId the "class-id" of the serialized object
+    * @return JSON with the "interfaces", "fields", and "api" of the class
+    */
+   public JSONObject getClassDescriptor(int classId) {
+      JSONObject descriptor = classDescriptorsById_.get(classId);
+      if (descriptor == null) {
+         throw new RuntimeException("Unknown class id: " + classId);
+      }
+      return descriptor;
+   }
 
-            //copy in all public fields of the object
-            JSONArray f = new JSONArray();
-            json.put("fields", f);
-            for (Field field : o.getClass().getFields()) {
-               int modifiers = field.getModifiers();
-               if (Modifier.isPublic(modifiers)) {
-                  f.put(field.getName());
-               }
+   /**
+    * The API description of a class is the same for all of its instances,
+    * so it is built once and reused for each object sent out
+    */
+   private JSONObject getClassDescriptor(Class objClass) throws JSONException {
+      JSONObject descriptor = classDescriptors_.get(objClass);
+      if (descriptor != null) {
+         return descriptor;
+      }
+      synchronized (classDescriptors_) {
+         if (classDescriptors_.containsKey(objClass)) {
+            return classDescriptors_.get(objClass);
+         }
+         descriptor = new JSONObject();
+         ArrayList<Class> apiInterfaces = new ArrayList<>();
+         if (objClass.getName().startsWith("java")) {
+            //Java classes
+            for (Class c : objClass.getInterfaces()) {
+               apiInterfaces.add(c);
             }
+            apiInterfaces.add(objClass);
+         } else {
+            //Non Java classes. Check to make sure only exposing things we mean to
+            Set<String> packageNames = new HashSet<String>();
+            //Search through all superclasses and interfaces
+            Class clazz = objClass;
+            do {
+               apiInterfaces.add(clazz);
+               for (Class inter : clazz.getInterfaces()) {
+                  apiInterfaces.add(inter);
+                  recursiveAddInterfaces(apiInterfaces, inter);
+               }
+               clazz = clazz.getSuperclass();
+            } while (clazz != null);
+         }
 
-            json.put("api", parseAPI(apiInterfaces));
+         if (apiInterfaces.isEmpty()) {
+            throw new RuntimeException("Couldn't find " + objClass.getName()
+                    + " on classpath, or this is an internal class that was accidentally exposed");
          }
-      } catch (JSONException e) {
-         throw new RuntimeException(e);
+         //List all API interfaces this class implments in case its passed
+         //back as an argument to another function
+         JSONArray e = new JSONArray();
+         descriptor.put("interfaces", e);
+         for (Class c : apiInterfaces) {
+            e.put(c.getName());
+         }
+
+         //copy in all public fields of the object
+         JSONArray f = new JSONArray();
+         descriptor.put("fields", f);
+         for (Field field : objClass.getFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isPublic(modifiers)) {
+               f.put(field.getName());
+            }
+         }
+
+         descriptor.put("api", parseAPI(apiInterfaces));
+         int classId = classDescriptors_.size();
+         descriptor.put("class-id", classId);
+         classDescriptorsById_.put(classId, descriptor);
+         classDescriptors_.put(objClass, descriptor);
+         return descriptor;
       }
    }
 
@@ -276,6 +351,47 @@ public class ZMQUtil {
       }
    }
 
+   /**
+    * Name used on the python side to identify the type of a primitive array
+    *
+    * @param o
+    * @return type name, or null if o is not an array of primitives
+    */
+   public static String getArrayTypeName(Object o) {
+      if (o instanceof byte[]) {
+         return "byte-array";
+      } else if (o instanceof short[]) {
+         return "short-array";
+      } else if (o instanceof double[]) {
+         return "double-array";
+      } else if (o instanceof int[]) {
+         return "int-array";
+      } else if (o instanceof float[]) {
+         return "float-array";
+      }
+      return null;
+   }
+
+   /**
+    * Describe an array of primitives that is sent as a raw binary frame
+    * following the JSON message, rather than Base64 encoded inside of it
+    *
+    * @param array array of primitives
+    * @param frame index of the frame containing the data (the JSON is frame 0)
+    * @return
+    */
+   public static JSONObject toBinaryJSON(Object array, int frame) {
+      try {
+         JSONObject json = new JSONObject();
+         json.put("type", getArrayTypeName(array));
+         json.put("frame", frame);
+         json.put("length", Array.getLength(array));
+         return json;
+      } catch (JSONException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
    /**
     * Convert array of primitives to a String
     *
@@ -283,48 +399,62 @@ public class ZMQUtil {
     * @return
     */
    public static String encodeArray(Object array) {
-      byte[] byteArray = null;
+      return Base64.getEncoder().encodeToString(toByteArray(array, BYTE_ORDER));
+   }
+
+   public static Object decodeArray(String serialized, Class arrayClass) {
+      return fromByteArray(Base64.getDecoder().decode(serialized), arrayClass, BYTE_ORDER);
+   }
+
+   /**
+    * Convert array of primitives to its raw bytes. byte arrays are returned
+    * as is, without copying
+    *
+    * @param array
+    * @param order
+    * @return
+    */
+   public static byte[] toByteArray(Object array, ByteOrder order) {
       if (array instanceof byte[]) {
-         byteArray = (byte[]) array;
+         return (byte[]) array;
       } else if (array instanceof short[]) {
          ByteBuffer buffer = ByteBuffer.allocate((((short[]) array)).length * Short.BYTES);
-         buffer.order(BYTE_ORDER).asShortBuffer().put((short[]) array);
-         byteArray = buffer.array();
+         buffer.order(order).asShortBuffer().put((short[]) array);
+         return buffer.array();
       } else if (array instanceof int[]) {
          ByteBuffer buffer = ByteBuffer.allocate((((int[]) array)).length * Integer.BYTES);
-         buffer.order(BYTE_ORDER).asIntBuffer().put((int[]) array);
-         byteArray = buffer.array();
+         buffer.order(order).asIntBuffer().put((int[]) array);
+         return buffer.array();
       } else if (array instanceof double[]) {
          ByteBuffer buffer = ByteBuffer.allocate((((double[]) array)).length * Double.BYTES);
-         buffer.order(BYTE_ORDER).asDoubleBuffer().put((double[]) array);
-         byteArray = buffer.array();
+         buffer.order(order).asDoubleBuffer().put((double[]) array);
+         return buffer.array();
       } else if (array instanceof float[]) {
          ByteBuffer buffer = ByteBuffer.allocate((((float[]) array)).length * Float.BYTES);
-         buffer.order(BYTE_ORDER).asFloatBuffer().put((float[]) array);
-         byteArray = buffer.array();
+         buffer.order(order).asFloatBuffer().put((float[]) array);
+         return buffer.array();
       }
-      return Base64.getEncoder().encodeToString(byteArray);
+      throw new RuntimeException("unknown array type");
    }
 
-   public static Object decodeArray(String serialized, Class arrayClass) {
-      byte[] byteArray = Base64.getDecoder().decode(serialized);
+   public static Object fromByteArray(byte[] byteArray, Class arrayClass, ByteOrder order) {
       if (arrayClass.equals(byte[].class)) {
          return byteArray;
       } else if (arrayClass.equals(short[].class)) {
          short[] shorts = new short[byteArray.length / 2];
-         ByteBuffer.wrap(byteArray).asShortBuffer().get(shorts);
+         ByteBuffer.wrap(byteArray).order(order).asShortBuffer().get(shorts);
          return shorts;
       } else if (arrayClass.equals(int[].class)) {
          int[] ints = new int[byteArray.length / 4];
-         ByteBuffer.wrap(byteArray).asIntBuffer().get(ints);
+         ByteBuffer.wrap(byteArray).order(order).asIntBuffer().get(ints);
          return ints;
       } else if (arrayClass.equals(double[].class)) {
          double[] doubles = new double[byteArray.length / 8];
-         ByteBuffer.wrap(byteArray).asDoubleBuffer().get(doubles);
+         ByteBuffer.wrap(byteArray).order(order).asDoubleBuffer().get(doubles);
          return doubles;
       } else if (arrayClass.equals(float[].class)) {
          float[] floats = new float[byteArray.length / 4];
-         ByteBuffer.wrap(byteArray).asFloatBuffer().get(floats);
+         ByteBuffer.wrap(byteArray).order(order).asFloatBuffer().get(floats);
          return floats;
       }
       throw new RuntimeException("unknown array type");
@@ -392,34 +522,143 @@ public class ZMQUtil {
       return methodArray;
    }
 
+   /**
+    * Names of all packages in the jars of a class loader. Package names are
+    * read from the paths of the jar entries without loading any classes, jars
+    * are read in parallel, and what was found in each jar is kept in an index
+    * file so that unchanged jars aren't read again on the next start
+    *
+    * @param cl
+    * @return
+    */
    public static Collection<String> getPackagesFromJars(URLClassLoader cl) {
-      HashSet<String> packages = new HashSet<String>();
-      for (URL u : cl.getURLs()) {
-         try {
-         ZipInputStream zip = new ZipInputStream(new FileInputStream(URLDecoder.decode(u.getFile(), "UTF-8")));
-            for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
-               if (!entry.isDirectory() && entry.getName().endsWith(".class") && !entry.getName().contains("$")) {
-                  // This ZipEntry represents a class. Now, what class does it represent?
-                  String className = entry.getName().replace('/', '.');
-                  className = className.substring(0, className.length() - 6); // including ".class"
-                  Class clazz = loadClass(className);
-                  try {
-                     if (clazz.getPackage() != null) {
-                        packages.add(clazz.getPackage().getName());
-                     }
-                  } catch (Exception sdf) {
-                     sdf.printStackTrace();
-                  }
-               }
+      return getPackagesFromJars(Collections.singletonList(cl));
+   }
+
+   /**
+    * Same as above, for the jars of several class loaders. Index entries for
+    * jars that aren't on any of them are dropped, so the index doesn't keep
+    * growing as jars are upgraded or removed
+    *
+    * @param cls
+    * @return
+    */
+   public static Collection<String> getPackagesFromJars(Collection<? extends ClassLoader> cls) {
+      List<URL> urls = new ArrayList<URL>();
+      for (ClassLoader cl : cls) {
+         if (cl instanceof URLClassLoader) {
+            urls.addAll(Arrays.asList(((URLClassLoader) cl).getURLs()));
+         }
+      }
+      Map<String, PackageIndexEntry> index = loadPackageIndex();
+      Set<String> jarPaths = ConcurrentHashMap.newKeySet();
+      AtomicBoolean indexChanged = new AtomicBoolean(false);
+      Set<String> packages = urls.parallelStream()
+              .flatMap((URL u) -> {
+                 try {
+                    File jar = new File(URLDecoder.decode(u.getFile(), "UTF-8"));
+                    if (!jar.isFile()) {
+                       return Stream.empty();
+                    }
+                    String path = jar.getAbsolutePath();
+                    jarPaths.add(path);
+                    PackageIndexEntry entry = index.get(path);
+                    if (entry == null || entry.lastModified_ != jar.lastModified()
+                            || entry.length_ != jar.length()) {
+                       entry = new PackageIndexEntry(jar.lastModified(), jar.length(),
+                               readPackagesFromJar(jar));
+                       index.put(path, entry);
+                       indexChanged.set(true);
+                    }
+                    return entry.packages_.stream();
+                 } catch (IOException e) {
+                    e.printStackTrace();
+                    return Stream.empty();
+                 }
+              }).collect(Collectors.toSet());
+      if (index.keySet().retainAll(jarPaths)) {
+         indexChanged.set(true);
+      }
+      if (indexChanged.get()) {
+         savePackageIndex(index);
+      }
+      return packages;
+   }
+
+   private static Set<String> readPackagesFromJar(File jar) throws IOException {
+      Set<String> packages = new HashSet<String>();
+      try (JarFile jarFile = new JarFile(jar)) {
+         Enumeration<JarEntry> entries = jarFile.entries();
+         while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            int lastSlash = name.lastIndexOf('/');
+            //classes in the default package, and copies for other java versions, aren't wanted
+            if (name.endsWith(".class") && lastSlash > 0 && !name.startsWith("META-INF/")) {
+               packages.add(name.substring(0, lastSlash).replace('/', '.'));
             }
-         } catch (Exception e) {
-            e.printStackTrace();
-            continue;
          }
       }
       return packages;
    }
 
+   private static File getPackageIndexFile() {
+      return new File(System.getProperty("java.io.tmpdir"), "pycromanager_package_index.txt");
+   }
+
+   /**
+    * Index file has one line per jar: path, modification time, length, and
+    * comma separated package names, separated by tabs
+    */
+   private static synchronized Map<String, PackageIndexEntry> loadPackageIndex() {
+      ConcurrentHashMap<String, PackageIndexEntry> index = new ConcurrentHashMap<String, PackageIndexEntry>();
+      File file = getPackageIndexFile();
+      if (!file.exists()) {
+         return index;
+      }
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+              new FileInputStream(file), "UTF-8"))) {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 4) {
+               continue;
+            }
+            Set<String> packages = new HashSet<String>();
+            for (String p : fields[3].split(",")) {
+               if (!p.isEmpty()) {
+                  packages.add(p);
+               }
+            }
+            index.put(fields[0], new PackageIndexEntry(Long.parseLong(fields[1]),
+                    Long.parseLong(fields[2]), packages));
+         }
+      } catch (IOException | NumberFormatException e) {
+         //unreadable index is the same as none, it gets rewritten
+         index.clear();
+      }
+      return index;
+   }
+
+   private static synchronized void savePackageIndex(Map<String, PackageIndexEntry> index) {
+      File file = getPackageIndexFile();
+      try {
+         //write to a separate file first, so a concurrent reader never sees half of it
+         File temp = File.createTempFile("pycromanager_package_index", ".tmp", file.getParentFile());
+         try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                 new FileOutputStream(temp), "UTF-8"))) {
+            for (Map.Entry<String, PackageIndexEntry> e : index.entrySet()) {
+               writer.write(e.getKey() + "\t" + e.getValue().lastModified_ + "\t"
+                       + e.getValue().length_ + "\t" + String.join(",", e.getValue().packages_) + "\n");
+            }
+         }
+         Files.move(temp.toPath(), file.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException e) {
+         //Not needed for anything to work, only makes the next start faster
+         e.printStackTrace();
+      }
+   }
+
    public static Set<String> getPackages() {
 
       Set<String> packages = new HashSet<String>();
@@ -442,6 +681,46 @@ public class ZMQUtil {
       throw new RuntimeException("Class not found on any classloaders");
    }
 
+   /**
+    * Superclasses and interfaces of a class that an API method could take in
+    * its place, found by walking the class's own hierarchy rather than loading
+    * every class in the packages it touches. Like getPackageClasses, java
+    * classes, Object, and classes in excluded packages are left out
+    *
+    * @param clazz
+    * @return
+    */
+   public Set<Class> getAPISupertypes(Class clazz) {
+      return apiSupertypes_.computeIfAbsent(clazz, (Class c) -> {
+         Set<Class> supertypes = new HashSet<Class>();
+         ArrayList<Class> toVisit = new ArrayList<Class>();
+         toVisit.add(c);
+         while (!toVisit.isEmpty()) {
+            Class type = toVisit.remove(toVisit.size() - 1);
+            if (type == null || type.equals(Object.class) || !supertypes.add(type)) {
+               continue;
+            }
+            toVisit.add(type.getSuperclass());
+            toVisit.addAll(Arrays.asList(type.getInterfaces()));
+         }
+         return supertypes.stream().filter((Class t) -> {
+            Package p = t.getPackage();
+            if (p == null) {
+               return true;
+            }
+            if (p.getName().contains("java.")) {
+               return false;
+            }
+            for (String exclude : excludedPaths_) {
+               if (p.getName().contains(exclude)) {
+                  return false;
+               }
+            }
+            return true;
+         }).collect(Collectors.toSet());
+      });
+   }
+
    public Set<Class> getPackageClasses(String packageName) throws UnsupportedEncodingException {
         if (packageAPIClasses_.containsKey(packageName)) {
             return packageAPIClasses_.get(packageName);
@@ -611,3 +890,16 @@ public class ZMQUtil {
       }
    }
 }
+
+class PackageIndexEntry {
+
+   final long lastModified_;
+   final long length_;
+   final Set<String> packages_;
+
+   PackageIndexEntry(long lastModified, long length, Set<String> packages) {
+      lastModified_ = lastModified;
+      length_ = length;
+      packages_ = packages;
+   }
+}
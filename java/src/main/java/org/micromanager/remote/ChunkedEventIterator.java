@@ -0,0 +1,87 @@
+package org.micromanager.remote;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.acqj.api.AcquisitionEvent;
+
+/**
+ * Events of one sequence that arrives over the socket in several chunks. The
+ * acquisition engine can start on it as soon as the first chunk is in, and
+ * later chunks are added while it runs. At most a fixed number of events are
+ * held at once; adding more waits for the engine to catch up
+ *
+ * @author henrypinkard
+ */
+public class ChunkedEventIterator implements Iterator<AcquisitionEvent> {
+
+   private static final long POLL_INTERVAL_MS = 10;
+
+   private final LinkedBlockingQueue<AcquisitionEvent> queue_;
+   private volatile boolean finished_ = false;
+   private AcquisitionEvent next_;
+
+   /**
+    * @param prefetchWindow maximum number of events waiting for the engine
+    */
+   public ChunkedEventIterator(int prefetchWindow) {
+      queue_ = new LinkedBlockingQueue<AcquisitionEvent>(prefetchWindow);
+   }
+
+   /**
+    * Add a chunk of events, waiting for space if needed
+    *
+    * @param events
+    * @throws InterruptedException
+    */
+   public void add(Iterator<AcquisitionEvent> events) throws InterruptedException {
+      while (events.hasNext()) {
+         queue_.put(events.next());
+      }
+   }
+
+   /**
+    * No more chunks will be added
+    */
+   public void finish() {
+      finished_ = true;
+   }
+
+   /**
+    * Drop events not yet taken, and end the iteration
+    */
+   public void abort() {
+      finished_ = true;
+      queue_.clear();
+   }
+
+   @Override
+   public boolean hasNext() {
+      try {
+         while (next_ == null) {
+            //read the flag first: once set, everything added is already queued
+            boolean finished = finished_;
+            next_ = queue_.poll(finished ? 0 : POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            if (next_ == null && finished) {
+               return false;
+            }
+         }
+         return true;
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         return false;
+      }
+   }
+
+   @Override
+   public AcquisitionEvent next() {
+      if (!hasNext()) {
+         throw new NoSuchElementException();
+      }
+      AcquisitionEvent event = next_;
+      next_ = null;
+      return event;
+   }
+
+}
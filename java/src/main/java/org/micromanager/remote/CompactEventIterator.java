@@ -0,0 +1,146 @@
+package org.micromanager.remote;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.acqj.api.AcquisitionEvent;
+import org.micromanager.acqj.api.AcquisitionInterface;
+
+/**
+ * Expands a compact description of a multi-dimensional set of events one
+ * event at a time, so that the full list never has to be sent over the socket
+ * or held in memory. The description has the form:
+ * <pre>
+ * {"template": {event fields shared by all events},
+ *  "axes": [{"name": "time", "count": 1000,
+ *            "ranges": {"min_start_time": {"start": 0, "step": 5}}},
+ *           {"count": 2, "values": [{"channel": {...}, "exposure": 10}, ...]},
+ *           {"name": "z", "count": 200,
+ *            "ranges": {"z": {"start": 0, "step": 0.5}}}]}
+ * </pre>
+ * Axes are listed from slowest to fastest changing. For each index along an
+ * axis, the index is put into the "axes" of the event under the axis name
+ * (if it has one), each range field is set to start + index * step, and the
+ * fields of the corresponding entry of values are copied in
+ *
+ * @author henrypinkard
+ */
+public class CompactEventIterator implements Iterator<AcquisitionEvent> {
+
+   private final AcquisitionInterface acq_;
+   private final JSONObject template_;
+   private final JSONObject templateAxes_;
+   private final JSONObject[] axes_;
+   private final int[] counts_;
+   private final int[] indices_;
+   private boolean hasNext_;
+
+   public CompactEventIterator(JSONObject description, AcquisitionInterface acq) throws JSONException {
+      acq_ = acq;
+      template_ = description.optJSONObject("template") != null
+              ? description.getJSONObject("template") : new JSONObject();
+      templateAxes_ = template_.optJSONObject("axes") != null
+              ? template_.getJSONObject("axes") : new JSONObject();
+      JSONArray axes = description.getJSONArray("axes");
+      axes_ = new JSONObject[axes.length()];
+      counts_ = new int[axes.length()];
+      indices_ = new int[axes.length()];
+      hasNext_ = true;
+      for (int i = 0; i < axes_.length; i++) {
+         axes_[i] = axes.getJSONObject(i);
+         counts_[i] = axes_[i].getInt("count");
+         if (counts_[i] <= 0) {
+            hasNext_ = false;
+         }
+      }
+   }
+
+   /**
+    * @return total number of events described
+    */
+   public long size() {
+      long size = 1;
+      for (int count : counts_) {
+         size *= count;
+      }
+      return size;
+   }
+
+   @Override
+   public boolean hasNext() {
+      return hasNext_;
+   }
+
+   @Override
+   public AcquisitionEvent next() {
+      if (!hasNext_) {
+         throw new NoSuchElementException();
+      }
+      try {
+         AcquisitionEvent event = AcquisitionEvent.fromJSON(buildEventJSON(), acq_);
+         advance();
+         return event;
+      } catch (JSONException ex) {
+         throw new RuntimeException("Incorrect format for compact acquisition events", ex);
+      }
+   }
+
+   private JSONObject buildEventJSON() throws JSONException {
+      //Shallow copy of the template: nested values are shared but never modified
+      JSONObject json = new JSONObject();
+      Iterator keys = template_.keys();
+      while (keys.hasNext()) {
+         String key = keys.next().toString();
+         json.put(key, template_.get(key));
+      }
+      JSONObject axesJSON = new JSONObject();
+      keys = templateAxes_.keys();
+      while (keys.hasNext()) {
+         String key = keys.next().toString();
+         axesJSON.put(key, templateAxes_.get(key));
+      }
+      json.put("axes", axesJSON);
+
+      for (int a = 0; a < axes_.length; a++) {
+         JSONObject axis = axes_[a];
+         int index = indices_[a];
+         if (axis.has("name")) {
+            axesJSON.put(axis.getString("name"), index);
+         }
+         JSONObject ranges = axis.optJSONObject("ranges");
+         if (ranges != null) {
+            Iterator fields = ranges.keys();
+            while (fields.hasNext()) {
+               String field = fields.next().toString();
+               JSONObject range = ranges.getJSONObject(field);
+               json.put(field, range.getDouble("start") + index * range.getDouble("step"));
+            }
+         }
+         JSONArray values = axis.optJSONArray("values");
+         if (values != null) {
+            JSONObject value = values.getJSONObject(index);
+            Iterator fields = value.keys();
+            while (fields.hasNext()) {
+               String field = fields.next().toString();
+               json.put(field, value.get(field));
+            }
+         }
+      }
+      return json;
+   }
+
+   //odometer style, last axis changes fastest
+   private void advance() {
+      for (int a = indices_.length - 1; a >= 0; a--) {
+         indices_[a]++;
+         if (indices_[a] < counts_[a]) {
+            return;
+         }
+         indices_[a] = 0;
+      }
+      hasNext_ = false;
+   }
+
+}
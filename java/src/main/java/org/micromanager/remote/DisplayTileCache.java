@@ -0,0 +1,243 @@
+package org.micromanager.remote;
+
+import java.lang.reflect.Array;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import mmcorej.TaggedImage;
+import org.micromanager.multiresstorage.MultiResMultipageTiffStorage;
+
+/**
+ * LRU cache of display data read from storage. Requested regions are split
+ * into blocks on the storage's tile grid at each resolution level, and each
+ * block is read from storage once and then served from memory until it is
+ * evicted or an image that could change it arrives
+ *
+ * @author henrypinkard
+ */
+class DisplayTileCache {
+
+   private final MultiResMultipageTiffStorage storage_;
+   private final int blockWidth_, blockHeight_;
+   private final String positionAxis_;
+   private volatile long maxBytes_;
+   private long currentBytes_ = 0;
+   //access ordered, so iteration starts at the least recently used
+   private final LinkedHashMap<BlockKey, TaggedImage> blocks_
+           = new LinkedHashMap<BlockKey, TaggedImage>(16, 0.75f, true);
+   private final AtomicLong hits_ = new AtomicLong();
+   private final AtomicLong misses_ = new AtomicLong();
+   private final AtomicLong evictions_ = new AtomicLong();
+   //bumped on every invalidation, so reads that started before one aren't cached
+   private long invalidations_ = 0;
+   //highest resolution level anything has been cached at, so invalidation
+   //doesn't have to look at levels that were never read
+   private int maxCachedResIndex_ = 0;
+
+   /**
+    * @param positionAxis axis that only says where a tile goes, and is left
+    * out of the axes the viewer asks for, or null if there isn't one
+    */
+   DisplayTileCache(MultiResMultipageTiffStorage storage, long maxBytes, String positionAxis) {
+      storage_ = storage;
+      maxBytes_ = maxBytes;
+      positionAxis_ = positionAxis;
+      blockWidth_ = Math.max(1, storage.getTileWidth());
+      blockHeight_ = Math.max(1, storage.getTileHeight());
+   }
+
+   void setMaxBytes(long maxBytes) {
+      maxBytes_ = maxBytes;
+      synchronized (this) {
+         evict();
+      }
+   }
+
+   long getHits() {
+      return hits_.get();
+   }
+
+   long getMisses() {
+      return misses_.get();
+   }
+
+   long getEvictions() {
+      return evictions_.get();
+   }
+
+   synchronized long getSizeBytes() {
+      return currentBytes_;
+   }
+
+   /**
+    * Drop the cached blocks a newly written tile is part of: at each
+    * resolution level, those covering the tile's area at these axes
+    *
+    * @param row grid row of the tile, 0 if not tiled
+    * @param col grid column of the tile, 0 if not tiled
+    */
+   synchronized void invalidate(HashMap<String, Integer> imageAxes, int row, int col) {
+      invalidations_++;
+      HashMap<String, Integer> axes = new HashMap<String, Integer>(imageAxes);
+      if (positionAxis_ != null) {
+         axes.remove(positionAxis_);
+      }
+      //full resolution pixels covered by the tile
+      long x0 = (long) col * blockWidth_;
+      long y0 = (long) row * blockHeight_;
+      for (int resIndex = 0; resIndex <= maxCachedResIndex_; resIndex++) {
+         long scale = 1L << resIndex;
+         int firstCol = (int) Math.floorDiv(Math.floorDiv(x0, scale), blockWidth_);
+         int lastCol = (int) Math.floorDiv(Math.floorDiv(x0 + blockWidth_ - 1, scale), blockWidth_);
+         int firstRow = (int) Math.floorDiv(Math.floorDiv(y0, scale), blockHeight_);
+         int lastRow = (int) Math.floorDiv(Math.floorDiv(y0 + blockHeight_ - 1, scale), blockHeight_);
+         for (int blockRow = firstRow; blockRow <= lastRow; blockRow++) {
+            for (int blockCol = firstCol; blockCol <= lastCol; blockCol++) {
+               TaggedImage removed = blocks_.remove(new BlockKey(axes, resIndex, blockRow, blockCol));
+               if (removed != null) {
+                  currentBytes_ -= sizeOf(removed);
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Drop every cached block, e.g. once lower resolution levels have been
+    * written without going through invalidate
+    */
+   synchronized void invalidateAll() {
+      invalidations_++;
+      blocks_.clear();
+      currentBytes_ = 0;
+   }
+
+   /**
+    * Same as storage.getStitchedImage, but assembled from cached blocks
+    */
+   TaggedImage getStitchedImage(HashMap<String, Integer> axes, int resIndex,
+           int xOffset, int yOffset, int width, int height) {
+      int firstCol = Math.floorDiv(xOffset, blockWidth_);
+      int lastCol = Math.floorDiv(xOffset + width - 1, blockWidth_);
+      int firstRow = Math.floorDiv(yOffset, blockHeight_);
+      int lastRow = Math.floorDiv(yOffset + height - 1, blockHeight_);
+      Object pix = null;
+      TaggedImage firstBlock = null;
+      int elementsPerPixel = 1;
+      for (int row = firstRow; row <= lastRow; row++) {
+         for (int col = firstCol; col <= lastCol; col++) {
+            TaggedImage block = getBlock(axes, resIndex, row, col);
+            if (block == null || block.pix == null) {
+               continue;
+            }
+            int blockLength = Array.getLength(block.pix);
+            if (pix == null) {
+               firstBlock = block;
+               elementsPerPixel = blockLength / (blockWidth_ * blockHeight_);
+               pix = Array.newInstance(block.pix.getClass().getComponentType(),
+                       width * height * elementsPerPixel);
+            }
+            //copy the part of the block that overlaps the requested region
+            int blockX = col * blockWidth_;
+            int blockY = row * blockHeight_;
+            int x0 = Math.max(xOffset, blockX);
+            int x1 = Math.min(xOffset + width, blockX + blockWidth_);
+            int y0 = Math.max(yOffset, blockY);
+            int y1 = Math.min(yOffset + height, blockY + blockHeight_);
+            for (int y = y0; y < y1; y++) {
+               System.arraycopy(block.pix, ((y - blockY) * blockWidth_ + (x0 - blockX)) * elementsPerPixel,
+                       pix, ((y - yOffset) * width + (x0 - xOffset)) * elementsPerPixel,
+                       (x1 - x0) * elementsPerPixel);
+            }
+         }
+      }
+      if (pix == null) {
+         //nothing cached or cacheable, let storage decide what to return
+         return storage_.getStitchedImage(axes, resIndex, xOffset, yOffset, width, height);
+      }
+      return new TaggedImage(pix, firstBlock.tags);
+   }
+
+   private TaggedImage getBlock(HashMap<String, Integer> axes, int resIndex, int row, int col) {
+      BlockKey key = new BlockKey(axes, resIndex, row, col);
+      long invalidations;
+      synchronized (this) {
+         TaggedImage block = blocks_.get(key);
+         if (block != null) {
+            hits_.incrementAndGet();
+            return block;
+         }
+         invalidations = invalidations_;
+      }
+      misses_.incrementAndGet();
+      //read outside the lock so other readers aren't held up by the disk
+      TaggedImage block = storage_.getStitchedImage(axes, resIndex,
+              col * blockWidth_, row * blockHeight_, blockWidth_, blockHeight_);
+      if (block == null || block.pix == null) {
+         return block;
+      }
+      synchronized (this) {
+         if (invalidations != invalidations_) {
+            //may be missing an image that arrived during the read
+            return block;
+         }
+         maxCachedResIndex_ = Math.max(maxCachedResIndex_, resIndex);
+         TaggedImage previous = blocks_.put(key, block);
+         if (previous != null) {
+            currentBytes_ -= sizeOf(previous);
+         }
+         currentBytes_ += sizeOf(block);
+         evict();
+      }
+      return block;
+   }
+
+   private void evict() {
+      Iterator<TaggedImage> it = blocks_.values().iterator();
+      while (currentBytes_ > maxBytes_ && it.hasNext()) {
+         currentBytes_ -= sizeOf(it.next());
+         it.remove();
+         evictions_.incrementAndGet();
+      }
+   }
+
+   private static long sizeOf(TaggedImage image) {
+      if (image.pix instanceof short[]) {
+         return 2L * ((short[]) image.pix).length;
+      } else if (image.pix instanceof byte[]) {
+         return ((byte[]) image.pix).length;
+      } else if (image.pix instanceof int[]) {
+         return 4L * ((int[]) image.pix).length;
+      }
+      return 0;
+   }
+
+   private static class BlockKey {
+
+      private final HashMap<String, Integer> axes_;
+      private final int resIndex_, row_, col_;
+
+      private BlockKey(HashMap<String, Integer> axes, int resIndex, int row, int col) {
+         axes_ = new HashMap<String, Integer>(axes);
+         resIndex_ = resIndex;
+         row_ = row;
+         col_ = col;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof BlockKey)) {
+            return false;
+         }
+         BlockKey k = (BlockKey) o;
+         return resIndex_ == k.resIndex_ && row_ == k.row_ && col_ == k.col_ && axes_.equals(k.axes_);
+      }
+
+      @Override
+      public int hashCode() {
+         return ((axes_.hashCode() * 31 + resIndex_) * 31 + row_) * 31 + col_;
+      }
+   }
+
+}
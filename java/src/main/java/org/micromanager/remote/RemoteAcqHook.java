@@ -25,21 +25,33 @@ import org.micromanager.internal.zmq.ZMQPushSocket;
 public class RemoteAcqHook implements AcquisitionHook {
 
    ZMQPushSocket<AcquisitionEvent> pushSocket_;
-   ZMQPullSocket<List<AcquisitionEvent>> pullSocket_;
+   ZMQPullSocket<HookReply> pullSocket_;
+   private volatile boolean nonMutating_ = false;
+   private volatile long timeoutNs_ = -1;
+   //Id sent with each event and echoed back with the reply to it. Only
+   //touched by the thread calling run
+   private long nextHookId_ = 0;
+   private volatile long numTimedOut_ = 0;
 
    public RemoteAcqHook(AcquisitionInterface acq) {
       pushSocket_ = new ZMQPushSocket<AcquisitionEvent>(
               new Function<AcquisitionEvent, JSONObject>() {
          @Override
          public JSONObject apply(AcquisitionEvent t) {
-            return t.toJSON();
+            try {
+               JSONObject json = t.toJSON();
+               json.put("hook-id", nextHookId_);
+               return json;
+            } catch (JSONException ex) {
+               throw new RuntimeException(ex);
+            }
          }
       });
 
-      pullSocket_ = new ZMQPullSocket<List<AcquisitionEvent>>(
-              new Function<JSONObject, List<AcquisitionEvent>>() {
+      pullSocket_ = new ZMQPullSocket<HookReply>(
+              new Function<JSONObject, HookReply>() {
                  @Override
-                 public List<AcquisitionEvent> apply(JSONObject t) {
+                 public HookReply apply(JSONObject t) {
                     try {
                        List<AcquisitionEvent> eventList = new ArrayList<AcquisitionEvent>();
                        if (t.has("events")) { // list of events
@@ -52,7 +64,7 @@ public class RemoteAcqHook implements AcquisitionHook {
                           eventList.add(AcquisitionEvent.fromJSON(t, acq));
                        }
 
-                       return eventList;
+                       return new HookReply(eventList, t.optLong("hook-id", -1));
                     } catch (JSONException ex) {
                        throw new RuntimeException("Incorrect format for acquisitio event");
                     }
@@ -60,14 +72,67 @@ public class RemoteAcqHook implements AcquisitionHook {
               });
    }
 
+   /**
+    * Declare that the python hook function only observes events and never
+    * changes them. Events are then sent without waiting for python to reply,
+    * and go on to the hardware unchanged. The acquisition finished event is
+    * still waited on, so every hook call has run by the time the acquisition
+    * ends. The python side must be started in the same mode
+    *
+    * @param nonMutating
+    */
+   public void setNonMutating(boolean nonMutating) {
+      nonMutating_ = nonMutating;
+   }
+
+   /**
+    * Only wait a limited time for python to return the event. If it hasn't
+    * by then, the acquisition carries on with the event as it was, and the
+    * late reply is discarded
+    *
+    * @param timeoutMicroseconds timeout, or a negative number to wait
+    * indefinitely (the default)
+    */
+   public void setTimeout(double timeoutMicroseconds) {
+      timeoutNs_ = timeoutMicroseconds < 0 ? -1 : (long) (timeoutMicroseconds * 1000);
+   }
+
+   /**
+    * @return number of events the acquisition carried on with unchanged
+    * because python did not reply in time
+    */
+   public long getNumTimedOut() {
+      return numTimedOut_;
+   }
+
    @Override
    public AcquisitionEvent run(AcquisitionEvent event) {
+      //sent with the event by the push socket
+      long hookId = ++nextHookId_;
+      if (nonMutating_ && !event.isAcquisitionFinishedEvent()) {
+         pushSocket_.push(event);
+         return event;
+      }
+      long timeoutNs = event.isAcquisitionFinishedEvent() ? -1 : timeoutNs_;
       pushSocket_.push(event);
-      List<AcquisitionEvent> ae = pullSocket_.next();
-      if (ae.size() == 1) {
-         return ae.get(0);
-      } else {
-         return new AcquisitionEvent(ae);
+      long deadline = System.nanoTime() + timeoutNs;
+      while (true) {
+         HookReply reply = timeoutNs < 0 ? pullSocket_.next()
+                 : pullSocket_.next(Math.max(0, deadline - System.nanoTime()));
+         if (reply == null) {
+            numTimedOut_++;
+            return event;
+         }
+         //others are late replies for events that timed out. Replies without
+         //an id come from python clients that don't send one back
+         if (reply.hookId_ == hookId || reply.hookId_ == -1) {
+            List<AcquisitionEvent> ae = reply.events_;
+            if (ae.size() == 1) {
+               return ae.get(0);
+            } else {
+               return new AcquisitionEvent(ae);
+            }
+         }
       }
    }
 
@@ -86,3 +151,14 @@ public class RemoteAcqHook implements AcquisitionHook {
    }
 
 }
+
+class HookReply {
+
+   final List<AcquisitionEvent> events_;
+   final long hookId_;
+
+   HookReply(List<AcquisitionEvent> events, long hookId) {
+      events_ = events;
+      hookId_ = hookId;
+   }
+}
@@ -44,6 +44,25 @@ public class RemoteAcquisition extends Acquisition
       return eventSource_.getPort();
    }
    
+   /**
+    * Merge runs of events sent from python that only differ in sequenceable
+    * hardware settings into hardware sequences. Must be called before events
+    * are sent
+    *
+    * @param merge
+    */
+   public void setMergeSequences(boolean merge) {
+      eventSource_.setMergeSequences(merge);
+   }
+
+   /**
+    * @return summary of the events merged into hardware sequences so far, or
+    * null if merging is off
+    */
+   public String getSequenceMergeReport() {
+      return eventSource_.getSequenceMergeReport();
+   }
+
    @Override
    public void abort() {
       super.abort();
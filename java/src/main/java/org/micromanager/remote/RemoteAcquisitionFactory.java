@@ -15,11 +15,13 @@ import org.micromanager.acqj.internal.acqengj.Engine;
 public class RemoteAcquisitionFactory {
    
    private Engine eng_;
+   private CMMCore core_;
 
    /////////////////////////////////////////////////////////////////
    /////////   These methods are called by the Python side /////////
    /////////////////////////////////////////////////////////////////
    public RemoteAcquisitionFactory(CMMCore core) {
+      core_ = core;
       eng_ = Engine.getInstance();
       if (eng_ == null) {
          eng_ = new Engine(core);
@@ -28,11 +30,27 @@ public class RemoteAcquisitionFactory {
 
    public RemoteAcquisition createAcquisition(String dir, String name, boolean showViewer,
                                               boolean xyTiled, int tileOverlapX, int tileOverlapY, int maxResLevel) {
-      RemoteEventSource eventSource = new RemoteEventSource();
+      return createAcquisition(dir, name, showViewer, xyTiled, tileOverlapX, tileOverlapY, maxResLevel, 0, 1,
+              false);
+   }
+
+   /**
+    * @param writeQueueDepth number of images that can be waiting to be
+    * written to disk by a separate thread, or 0 to write them on the
+    * acquisition's thread
+    * @param writeBatchSize maximum number of images the writer thread takes
+    * from the queue at once
+    * @param deferPyramid for tiled acquisitions, write only full resolution
+    * while acquiring and build the downsampled levels when it finishes
+    */
+   public RemoteAcquisition createAcquisition(String dir, String name, boolean showViewer,
+                                              boolean xyTiled, int tileOverlapX, int tileOverlapY, int maxResLevel,
+                                              int writeQueueDepth, int writeBatchSize, boolean deferPyramid) {
+      RemoteEventSource eventSource = new RemoteEventSource(core_);
       RemoteViewerStorageAdapter adapter = null;
       if (name != null && dir != null) {
          adapter = new RemoteViewerStorageAdapter(showViewer, dir, name, xyTiled, tileOverlapX, tileOverlapY,
-                 maxResLevel == -1 ? null : maxResLevel);
+                 maxResLevel == -1 ? null : maxResLevel, writeQueueDepth, writeBatchSize, deferPyramid);
       }
       return new RemoteAcquisition(eventSource, adapter);
    }
@@ -6,10 +6,12 @@
 package org.micromanager.remote;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.function.Function;
+import mmcorej.CMMCore;
 import mmcorej.org.json.JSONArray;
 import mmcorej.org.json.JSONException;
 import mmcorej.org.json.JSONObject;
@@ -22,25 +24,45 @@ import org.micromanager.internal.zmq.ZMQPullSocket;
  */
 public class RemoteEventSource {
 
-   private ZMQPullSocket<List<AcquisitionEvent>> pullSocket_;
+   private ZMQPullSocket<Iterator<AcquisitionEvent>> pullSocket_;
    private RemoteAcquisition acq_;
+   //Maximum number of events of a chunked sequence held before the engine gets to them
+   private static final int PREFETCH_WINDOW = 10000;
+
+   //Only touched by the executor thread
+   private boolean finishedReceived_ = false;
+   private boolean sequenceContinues_ = false;
+   //sequence currently arriving in chunks, if any
+   private volatile ChunkedEventIterator chunkedSequence_;
+   private final CMMCore core_;
+   //null unless merging hardware sequences has been turned on
+   private volatile SequenceMerger sequenceMerger_;
    private ExecutorService executor_ = Executors.newSingleThreadExecutor((Runnable r) -> {
       return new Thread(r, "Remote Event Source thread");
    });
 
-   public RemoteEventSource() {
-      pullSocket_ = new ZMQPullSocket<List<AcquisitionEvent>>(
-              new Function<JSONObject, List<AcquisitionEvent>>() {
+   public RemoteEventSource(CMMCore core) {
+      core_ = core;
+      pullSocket_ = new ZMQPullSocket<Iterator<AcquisitionEvent>>(
+              new Function<JSONObject, Iterator<AcquisitionEvent>>() {
          @Override
-         public List<AcquisitionEvent> apply(JSONObject t) {
+         public Iterator<AcquisitionEvent> apply(JSONObject t) {
             try {
+               //more chunks of the same sequence to follow
+               sequenceContinues_ = t.optBoolean("sequence-continues", false);
+               if (t.has("compact-events")) {
+                  //expanded lazily as the acquisition engine asks for them
+                  return new CompactEventIterator(t.getJSONObject("compact-events"), acq_);
+               }
                List<AcquisitionEvent> eventList = new ArrayList<AcquisitionEvent>();
                JSONArray events = t.getJSONArray("events");
                for (int i = 0; i < events.length(); i++) {
                   JSONObject e = events.getJSONObject(i);
                   eventList.add(AcquisitionEvent.fromJSON(e, acq_));
                }
-               return eventList;
+               finishedReceived_ = !eventList.isEmpty()
+                       && eventList.get(eventList.size() - 1).isAcquisitionFinishedEvent();
+               return eventList.iterator();
             } catch (JSONException ex) {
                throw new RuntimeException("Incorrect format for acquisitio event");
             }
@@ -50,10 +72,22 @@ public class RemoteEventSource {
       executor_.submit(() -> {
          while (true) {
             try {
-               List<AcquisitionEvent> eList = pullSocket_.next();
-               boolean finished = eList.get(eList.size() - 1).isAcquisitionFinishedEvent();
-               acq_.submitEventIterator(eList.iterator());
-               if (finished || executor_.isShutdown()) {
+               Iterator<AcquisitionEvent> events = pullSocket_.next();
+               if (chunkedSequence_ != null) {
+                  chunkedSequence_.add(events);
+                  if (!sequenceContinues_) {
+                     chunkedSequence_.finish();
+                     chunkedSequence_ = null;
+                  }
+               } else if (sequenceContinues_) {
+                  //start the engine on the first chunk while the rest arrive
+                  chunkedSequence_ = new ChunkedEventIterator(PREFETCH_WINDOW);
+                  acq_.submitEventIterator(mergeSequences(chunkedSequence_));
+                  chunkedSequence_.add(events);
+               } else {
+                  acq_.submitEventIterator(mergeSequences(events));
+               }
+               if (finishedReceived_ || executor_.isShutdown()) {
                   executor_.shutdown();
                   pullSocket_.close();
                   return;
@@ -70,6 +104,30 @@ public class RemoteEventSource {
       });
    }
 
+   private Iterator<AcquisitionEvent> mergeSequences(Iterator<AcquisitionEvent> events) {
+      SequenceMerger merger = sequenceMerger_;
+      return merger == null ? events : merger.wrap(events);
+   }
+
+   /**
+    * Merge runs of consecutive events that the hardware can sequence into
+    * single sequenced events before they go to the engine
+    *
+    * @param merge
+    */
+   void setMergeSequences(boolean merge) {
+      sequenceMerger_ = merge ? new SequenceMerger(core_) : null;
+   }
+
+   /**
+    * @return summary of the events merged into hardware sequences, or null if
+    * merging is off
+    */
+   String getSequenceMergeReport() {
+      SequenceMerger merger = sequenceMerger_;
+      return merger == null ? null : merger.getReport();
+   }
+
    void setAcquisition(RemoteAcquisition aThis) {
       acq_ = aThis;
    }
@@ -85,6 +143,10 @@ public class RemoteEventSource {
     */
    void abort() {
       executor_.shutdownNow();
+      ChunkedEventIterator chunkedSequence = chunkedSequence_;
+      if (chunkedSequence != null) {
+         chunkedSequence.abort();
+      }
       pullSocket_.close();
    }
 
@@ -5,15 +5,25 @@
  */
 package org.micromanager.remote;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
-import java.util.function.Function;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
 import mmcorej.TaggedImage;
 import mmcorej.org.json.JSONException;
 import mmcorej.org.json.JSONObject;
 import org.micromanager.acqj.api.AcqEngMetadata;
 import org.micromanager.acqj.api.TaggedImageProcessor;
+import org.micromanager.internal.zmq.BufferPool;
 import org.micromanager.internal.zmq.ZMQPullSocket;
 import org.micromanager.internal.zmq.ZMQPushSocket;
 import org.micromanager.internal.zmq.ZMQUtil;
@@ -29,20 +39,64 @@ public class RemoteImageProcessor implements TaggedImageProcessor {
    volatile LinkedBlockingDeque<TaggedImage> source_, sink_;
 
    ZMQPushSocket<TaggedImage> pushSocket_;
-   ZMQPullSocket<TaggedImage> pullSocket_;
+   ZMQPullSocket<ProcessorMessage> pullSocket_;
+
+   private static final long DROP_OLDEST_POLL_MS = 5;
+   private static final long FINISH_POLL_NS = TimeUnit.MILLISECONDS.toNanos(1);
+   //Binary pixel frames at least this big are received into pooled arrays
+   private static final int POOLED_FRAME_MIN_BYTES = 64 * 1024;
+   private static final int POOLED_FRAMES_PER_SIZE = 8;
+
+   /**
+    * What to do with a new image when the python side already has the
+    * maximum number of images in flight
+    */
+   public enum OverflowPolicy {
+      BLOCK, DROP_OLDEST, DROP_NEWEST
+   }
+
+   private volatile boolean binaryPixels_ = false;
+   //Credits for sending images; null when there is no limit
+   private volatile Semaphore credits_;
+   private volatile int maxInFlight_ = 0;
+   private volatile OverflowPolicy overflowPolicy_ = OverflowPolicy.BLOCK;
+   private final AtomicLong numPushed_ = new AtomicLong();
+   private final AtomicLong numProcessed_ = new AtomicLong();
+   private final AtomicLong numDropped_ = new AtomicLong();
+   private volatile int sharedMemorySlots_ = 0;
+   private volatile SharedMemoryRingBuffer sharedMemory_;
+   private volatile int numWorkers_ = 1;
+   private volatile boolean ordered_ = true;
+   //Reorder buffer, only touched by the pull thread
+   private final TreeMap<Long, List<TaggedImage>> pendingResults_ = new TreeMap<Long, List<TaggedImage>>();
+   private final TreeSet<Long> completedSequences_ = new TreeSet<Long>();
+   private long nextSequenceOut_ = 0;
+   private boolean finishedReceived_ = false;
+   private volatile int reorderBufferSize_ = 0;
+   private final BufferPool receiveBufferPool_ = new BufferPool(POOLED_FRAMES_PER_SIZE);
 
    public RemoteImageProcessor() {
       pushSocket_ = new ZMQPushSocket<TaggedImage>(
-              new Function<TaggedImage, JSONObject>() {
+              new BiFunction<TaggedImage, List<byte[]>, JSONObject>() {
          @Override
-         public JSONObject apply(TaggedImage t) {
+         public JSONObject apply(TaggedImage t, List<byte[]> binaryFrames) {
             try {
                JSONObject json = new JSONObject();
                if (t.tags == null && t.pix == null) {
                   json.put("special", "finished");
                } else {
                   json.put("metadata", t.tags);
-                  json.put("pixels", ZMQUtil.toJSON(t.pix));
+                  //numbered in the order they left, so results can be put back in order
+                  json.put("sequence", numPushed_.get());
+                  JSONObject sharedMemoryPixels = writeToSharedMemory(t.pix);
+                  if (sharedMemoryPixels != null) {
+                     json.put("pixels", sharedMemoryPixels);
+                  } else if (binaryPixels_) {
+                     binaryFrames.add(ZMQUtil.toByteArray(t.pix, ZMQUtil.BINARY_FRAME_BYTE_ORDER));
+                     json.put("pixels", ZMQUtil.toBinaryJSON(t.pix, binaryFrames.size()));
+                  } else {
+                     json.put("pixels", ZMQUtil.toJSON(t.pix));
+                  }
                }
                return json;
             } catch (JSONException ex) {
@@ -51,31 +105,313 @@ public class RemoteImageProcessor implements TaggedImageProcessor {
          }
       });
 
-      pullSocket_ = new ZMQPullSocket<TaggedImage>(
-              new Function<JSONObject, TaggedImage>() {
+      pullSocket_ = new ZMQPullSocket<ProcessorMessage>(
+              new BiFunction<JSONObject, List<byte[]>, ProcessorMessage>() {
          @Override
-         public TaggedImage apply(JSONObject t) {
+         public ProcessorMessage apply(JSONObject t, List<byte[]> binaryFrames) {
             try {
+               long sequence = t.optLong("sequence", -1);
                if (t instanceof JSONObject && ((JSONObject) t).has("special")
                        && ((JSONObject) t).getString("special").equals("finished")) {
-                  return new TaggedImage(null, null);
+                  return new ProcessorMessage(new TaggedImage(null, null), sequence);
+               } else if (t.has("special") && t.getString("special").equals("processed")) {
+                  //python is done with one of the images sent to it
+                  return new ProcessorMessage(null, sequence);
                } else {
                   JSONObject tags = ((JSONObject) t).getJSONObject("metadata");
-                  Object pix = ZMQUtil.decodeArray(((JSONObject) t).getString("pixels"),
-                          AcqEngMetadata.getBytesPerPixel(tags) == 1 ? byte[].class : short[].class);
-                  return new TaggedImage(pix, tags);
+                  Class pixClass = AcqEngMetadata.getBytesPerPixel(tags) == 1 ? byte[].class : short[].class;
+                  Object pix;
+                  if (t.get("pixels") instanceof JSONObject) {
+                     //raw pixels sent in separate frame
+                     int frame = t.getJSONObject("pixels").getInt("frame");
+                     byte[] frameBytes = binaryFrames.get(frame - 1);
+                     //The pixel array itself is always new: storage and the
+                     //viewer hold on to it with no signal for when they're done
+                     pix = ZMQUtil.fromByteArray(frameBytes, pixClass,
+                             ZMQUtil.BINARY_FRAME_BYTE_ORDER);
+                     if (pix != frameBytes && frameBytes.length >= POOLED_FRAME_MIN_BYTES) {
+                        //pixels were copied out, so the frame can be received into again
+                        receiveBufferPool_.give(frameBytes);
+                     }
+                  } else {
+                     //Not pooled: decoding needs the whole Base64 string in
+                     //memory anyway. Binary frames are the fast path
+                     pix = ZMQUtil.decodeArray(((JSONObject) t).getString("pixels"), pixClass);
+                  }
+                  return new ProcessorMessage(new TaggedImage(pix, tags), sequence);
                }
             } catch (JSONException ex) {
                throw new RuntimeException(ex);
             }
          }
       });
+      pullSocket_.setBufferPool(receiveBufferPool_, POOLED_FRAME_MIN_BYTES);
       pushExecutor_ = Executors.newSingleThreadExecutor(
               (Runnable r) -> new Thread(r, "Tagged Image socket push"));
       pullExecutor_ = Executors.newSingleThreadExecutor(
               (Runnable r) -> new Thread(r, "Tagged Image socket pull"));
    }
 
+   /**
+    * Send pixels to the python side as a raw binary frame following the
+    * metadata, rather than Base64 encoded within the JSON. Must be called before
+    * startPush. Older python clients only understand the JSON version
+    *
+    * @param binaryPixels
+    */
+   public void setBinaryPixels(boolean binaryPixels) {
+      binaryPixels_ = binaryPixels;
+   }
+
+   /**
+    * Hand pixels to the python side through a memory mapped file rather than
+    * over the socket, which only carries a small descriptor of where to find
+    * them. Only works when python runs on the same machine. The file is sized
+    * from the first image; any image too big for a slot is sent as a binary
+    * frame instead. Must be called before startPush
+    *
+    * @param numSlots number of images that can be waiting for python at once
+    */
+   public void setSharedMemory(int numSlots) {
+      sharedMemorySlots_ = numSlots;
+   }
+
+   //Called on push thread only
+   private JSONObject writeToSharedMemory(Object pix) {
+      if (sharedMemorySlots_ <= 0) {
+         return null;
+      }
+      int numBytes = SharedMemoryRingBuffer.getNumBytes(pix);
+      if (numBytes < 0) {
+         return null;
+      }
+      try {
+         if (sharedMemory_ == null) {
+            if (!SharedMemoryRingBuffer.canMap(sharedMemorySlots_, numBytes)) {
+               //images too big for this many slots, send them over the socket
+               sharedMemorySlots_ = 0;
+               return null;
+            }
+            sharedMemory_ = new SharedMemoryRingBuffer(sharedMemorySlots_, numBytes);
+         }
+         if (!sharedMemory_.fits(numBytes)) {
+            return null;
+         }
+         return sharedMemory_.write(pix);
+      } catch (IOException ex) {
+         ex.printStackTrace();
+         //fall back to sending over the socket from now on
+         sharedMemorySlots_ = 0;
+         return null;
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(ex);
+      }
+   }
+
+   /**
+    * Let several python workers process images in parallel. Each image goes to
+    * one worker, and results are either put back in acquisition order or
+    * passed on as soon as they arrive. The pull socket binds so that all the
+    * workers can connect to it. Must be called before the python side
+    * connects
+    *
+    * @param numWorkers number of python workers that will connect
+    * @param ordered true to pass on results in the order images were
+    * acquired, false to pass them on as they are completed
+    */
+   public void setWorkers(int numWorkers, boolean ordered) {
+      if (numWorkers <= 0) {
+         throw new IllegalArgumentException("numWorkers must be positive");
+      }
+      if (numWorkers > 1 && numWorkers_ == 1) {
+         pullSocket_.bind();
+      }
+      numWorkers_ = numWorkers;
+      ordered_ = ordered;
+   }
+
+   /**
+    * @return number of processed images held back waiting for earlier ones
+    */
+   public int getReorderBufferSize() {
+      return reorderBufferSize_;
+   }
+
+   //Pull thread only
+   private void handleResult(ProcessorMessage message) throws InterruptedException {
+      boolean reorder = ordered_ && numWorkers_ > 1 && message.sequence_ >= 0;
+      if (message.image_ == null) {
+         numProcessed_.incrementAndGet();
+         Semaphore credits = credits_;
+         if (credits != null) {
+            credits.release();
+         }
+         if (reorder) {
+            completedSequences_.add(message.sequence_);
+            //pass on everything that is no longer waiting on an earlier image
+            while (completedSequences_.remove(nextSequenceOut_)) {
+               List<TaggedImage> results = pendingResults_.remove(nextSequenceOut_);
+               if (results != null) {
+                  for (TaggedImage result : results) {
+                     sink_.putLast(result);
+                  }
+                  reorderBufferSize_ -= results.size();
+               }
+               nextSequenceOut_++;
+            }
+         }
+      } else if (isFinished(message.image_)) {
+         //only sent once every result is back, so nothing is left waiting
+         if (!finishedReceived_) {
+            finishedReceived_ = true;
+            for (List<TaggedImage> results : pendingResults_.values()) {
+               for (TaggedImage result : results) {
+                  sink_.putLast(result);
+               }
+            }
+            pendingResults_.clear();
+            reorderBufferSize_ = 0;
+            sink_.putLast(message.image_);
+         }
+      } else if (reorder) {
+         List<TaggedImage> results = pendingResults_.get(message.sequence_);
+         if (results == null) {
+            results = new ArrayList<TaggedImage>();
+            pendingResults_.put(message.sequence_, results);
+         }
+         results.add(message.image_);
+         reorderBufferSize_++;
+      } else {
+         sink_.putLast(message.image_);
+      }
+   }
+
+   /**
+    * Limit the number of images that have been sent to python but not yet
+    * processed. Each image sent uses up a credit, and python hands it back once
+    * its processing function has run on that image. When no credits are left,
+    * the policy decides whether to wait (which backs up the acquisition), to
+    * replace the waiting image with newer ones, or to drop new images. Must be
+    * called before startPush
+    *
+    * @param maxInFlight maximum number of images python can have at once
+    * @param overflowPolicy "block", "drop-oldest" or "drop-newest"
+    */
+   public void setFlowControl(int maxInFlight, String overflowPolicy) {
+      if (maxInFlight <= 0) {
+         throw new IllegalArgumentException("maxInFlight must be positive");
+      }
+      overflowPolicy_ = OverflowPolicy.valueOf(overflowPolicy.toUpperCase().replace('-', '_'));
+      maxInFlight_ = maxInFlight;
+      credits_ = new Semaphore(maxInFlight);
+   }
+
+   /**
+    * @return number of images sent to python and not yet processed, or 0 when
+    * there is no limit set with setFlowControl
+    */
+   public int getNumInFlight() {
+      Semaphore credits = credits_;
+      return credits == null ? 0 : maxInFlight_ - credits.availablePermits();
+   }
+
+   /**
+    * @return number of images waiting to be sent to python
+    */
+   public int getSourceQueueSize() {
+      return source_ == null ? 0 : source_.size();
+   }
+
+   /**
+    * @return number of processed images waiting to be passed on
+    */
+   public int getSinkQueueSize() {
+      return sink_ == null ? 0 : sink_.size();
+   }
+
+   public long getNumPushed() {
+      return numPushed_.get();
+   }
+
+   public long getNumProcessed() {
+      return numProcessed_.get();
+   }
+
+   /**
+    * @return number of images dropped by the overflow policy
+    */
+   public long getNumDropped() {
+      return numDropped_.get();
+   }
+
+   /**
+    * @return number of received pixel frames that reused a pooled array
+    * rather than allocating a new one
+    */
+   public long getNumReceiveBuffersReused() {
+      return receiveBufferPool_.getNumReused();
+   }
+
+   private static boolean isFinished(TaggedImage img) {
+      return img.tags == null && img.pix == null;
+   }
+
+   /**
+    * Wait for a credit according to the overflow policy
+    *
+    * @return the image to push, or null if it was dropped
+    */
+   private TaggedImage acquireCredit(TaggedImage img) throws InterruptedException {
+      Semaphore credits = credits_;
+      if (credits == null || isFinished(img)) {
+         //finished signal must always get through
+         return img;
+      }
+      switch (overflowPolicy_) {
+         case BLOCK:
+            credits.acquire();
+            return img;
+         case DROP_NEWEST:
+            if (credits.tryAcquire()) {
+               return img;
+            }
+            numDropped_.incrementAndGet();
+            return null;
+         case DROP_OLDEST:
+            if (credits.tryAcquire()) {
+               return img;
+            }
+            while (true) {
+               //keep only the newest waiting image, however fast they arrive
+               img = dropAllButNewest(img);
+               if (credits.tryAcquire(DROP_OLDEST_POLL_MS, TimeUnit.MILLISECONDS)) {
+                  return dropAllButNewest(img);
+               }
+            }
+         default:
+            throw new RuntimeException("Unknown overflow policy");
+      }
+   }
+
+   /**
+    * Drop img and every waiting image except the newest one. Stops at the
+    * finished signal, which has to be sent after the images before it
+    *
+    * @return the newest image
+    */
+   private TaggedImage dropAllButNewest(TaggedImage img) {
+      while (true) {
+         TaggedImage newer = source_.peekFirst();
+         if (newer == null || isFinished(newer)) {
+            return img;
+         }
+         source_.pollFirst();
+         numDropped_.incrementAndGet();
+         img = newer;
+      }
+   }
+
    public int getPullPort() {
       return pullSocket_.getPort();
    }
@@ -90,8 +426,18 @@ public class RemoteImageProcessor implements TaggedImageProcessor {
          while (true) {
             if (source_ != null) {
                try {
-                  TaggedImage img = source_.takeFirst();
-                  pushSocket_.push(img);
+                  TaggedImage img = acquireCredit(source_.takeFirst());
+                  if (img != null && isFinished(img)) {
+                     //Sent once every result is back. Whichever worker gets
+                     //it echoes it and tells the others to stop on the python side
+                     while (numProcessed_.get() < numPushed_.get()) {
+                        LockSupport.parkNanos(FINISH_POLL_NS);
+                     }
+                     pushSocket_.push(img);
+                  } else if (img != null) {
+                     pushSocket_.push(img);
+                     numPushed_.incrementAndGet();
+                  }
                } catch (InterruptedException ex) {
                   return;
                } catch (Exception e) {
@@ -110,8 +456,7 @@ public class RemoteImageProcessor implements TaggedImageProcessor {
          while (true) {
             if (sink_ != null) {
                try {
-                  TaggedImage ti = pullSocket_.next();
-                  sink_.putLast(ti);
+                  handleResult(pullSocket_.next());
                } catch (InterruptedException ex) {
                   return;
                } catch (Exception e) {
@@ -137,6 +482,24 @@ public class RemoteImageProcessor implements TaggedImageProcessor {
       pushExecutor_.shutdownNow();
       pushSocket_.close();
       pullSocket_.close();
+      if (sharedMemory_ != null) {
+         sharedMemory_.close();
+      }
    }
 
 }
+
+/**
+ * Message from the python side: a processed image, the finished signal, or
+ * (with a null image) notice that python is done with an image it was sent
+ */
+class ProcessorMessage {
+
+   final TaggedImage image_;
+   final long sequence_;
+
+   ProcessorMessage(TaggedImage image, long sequence) {
+      image_ = image;
+      sequence_ = sequence;
+   }
+}
@@ -6,10 +6,23 @@
 package org.micromanager.remote;
 
 import java.awt.*;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import mmcorej.TaggedImage;
 import mmcorej.org.json.JSONObject;
 import org.micromanager.acqj.api.AcqEngMetadata;
@@ -28,12 +41,24 @@ import org.micromanager.ndviewer.api.ViewerAcquisitionInterface;
  */
 public class RemoteViewerStorageAdapter implements DataSourceInterface, DataSink {
 
-   private ExecutorService displayCommunicationExecutor_;
+   //how often the viewer is told about new images
+   private static final long VIEWER_UPDATE_INTERVAL_MS = 33;
+
+   private ScheduledExecutorService displayCommunicationExecutor_;
+   //Viewer updates not yet sent, coalesced so there are at most a few per
+   //channel and axis no matter how fast images arrive
+   private LinkedHashMap<String, PendingViewerUpdate> pendingViewerUpdates_
+           = new LinkedHashMap<String, PendingViewerUpdate>();
+   //Channels whose display settings the viewer hasn't been given, with their bit depths
+   private LinkedHashMap<String, Integer> pendingNewChannels_ = new LinkedHashMap<String, Integer>();
+   //Smallest and largest value seen on each axis, only used from writeImage
+   private final HashMap<String, Integer> minAxisValues_ = new HashMap<String, Integer>();
+   private final HashMap<String, Integer> maxAxisValues_ = new HashMap<String, Integer>();
 
    private volatile ViewerInterface viewer_;
    private volatile RemoteAcquisition acq_;
    private volatile MultiResMultipageTiffStorage storage_;
-   private CopyOnWriteArrayList<String> channelNames_ = new CopyOnWriteArrayList<String>();
+   private final Set<String> channelNames_ = ConcurrentHashMap.newKeySet();
 
    private final boolean showViewer_, storeData_, xyTiled_;
    private final int tileOverlapX_, tileOverlapY_;
@@ -41,9 +66,50 @@ public class RemoteViewerStorageAdapter implements DataSourceInterface, DataSink
    private String name_;
    private Integer maxResLevel_;
 
+   //Write-behind queue between the acquisition and storage; null when
+   //images are written synchronously
+   private final LinkedBlockingQueue<TaggedImage> writeQueue_;
+   private final int writeBatchSize_;
+   private ExecutorService writerExecutor_;
+   private volatile Throwable writeError_;
+   private final AtomicLong numImagesWritten_ = new AtomicLong();
+   private final AtomicLong totalWriteTimeNs_ = new AtomicLong();
+   private final AtomicLong maxWriteTimeNs_ = new AtomicLong();
+   private final boolean deferPyramid_;
+   private volatile Future<?> pyramidBuild_;
+   private final ExecutorService prefetchExecutor_ = Executors.newSingleThreadExecutor((Runnable r) -> {
+      Thread t = new Thread(r, "Image display prefetch thread");
+      t.setDaemon(true);
+      return t;
+   });
+   private final AtomicLong prefetchGeneration_ = new AtomicLong();
+   private static final long DEFAULT_DISPLAY_CACHE_BYTES = 256L * 1024 * 1024;
+   private volatile long displayCacheBytes_ = DEFAULT_DISPLAY_CACHE_BYTES;
+   private volatile DisplayTileCache displayCache_;
+
    public RemoteViewerStorageAdapter(boolean showViewer,  String dataStorageLocation,
                                      String name, boolean xyTiled, int tileOverlapX, int tileOverlapY,
                                      Integer maxResLevel) {
+      this(showViewer, dataStorageLocation, name, xyTiled, tileOverlapX, tileOverlapY, maxResLevel, 0, 1, false);
+   }
+
+   /**
+    * @param writeQueueDepth if greater than 0, images are handed to a
+    * dedicated writer thread through a queue of this many images, so that
+    * short disk stalls don't hold up the acquisition. 0 writes synchronously
+    * @param writeBatchSize maximum number of queued images the writer thread
+    * takes at once
+    * @param deferPyramid for tiled acquisitions, only write full resolution
+    * while acquiring, and build the lower resolution levels once all images
+    * are in
+    */
+   public RemoteViewerStorageAdapter(boolean showViewer,  String dataStorageLocation,
+                                     String name, boolean xyTiled, int tileOverlapX, int tileOverlapY,
+                                     Integer maxResLevel, int writeQueueDepth, int writeBatchSize,
+                                     boolean deferPyramid) {
+      deferPyramid_ = deferPyramid && xyTiled;
+      writeQueue_ = writeQueueDepth > 0 ? new LinkedBlockingQueue<TaggedImage>(writeQueueDepth) : null;
+      writeBatchSize_ = Math.max(1, writeBatchSize);
       showViewer_ = showViewer;
       storeData_ = dataStorageLocation != null;
       xyTiled_ = xyTiled;
@@ -63,8 +129,22 @@ public class RemoteViewerStorageAdapter implements DataSourceInterface, DataSink
                  AcqEngMetadata.getWidth(summaryMetadata),
                  AcqEngMetadata.getHeight(summaryMetadata),
                  AcqEngMetadata.isRGB(summaryMetadata) ? 1 :AcqEngMetadata.getBytesPerPixel(summaryMetadata),
-                 xyTiled_, maxResLevel_, AcqEngMetadata.isRGB(summaryMetadata));
+                 xyTiled_, deferPyramid_ ? Integer.valueOf(0) : maxResLevel_,
+                 AcqEngMetadata.isRGB(summaryMetadata));
          name_ = storage_.getUniqueAcqName();
+         displayCache_ = new DisplayTileCache(storage_, displayCacheBytes_,
+                 xyTiled_ ? AcqEngMetadata.POSITION_AXIS : null);
+         if (writeQueue_ != null) {
+            writerExecutor_ = Executors.newSingleThreadExecutor((Runnable r) -> {
+               //so an acquisition that dies without finishing can't keep the JVM alive
+               Thread t = new Thread(r, "Image storage writer thread");
+               t.setDaemon(true);
+               return t;
+            });
+            writerExecutor_.submit(() -> {
+               writeLoop();
+            });
+         }
       }
 
       if (showViewer_) {
@@ -79,7 +159,7 @@ public class RemoteViewerStorageAdapter implements DataSourceInterface, DataSink
 
    private void createDisplay(JSONObject summaryMetadata) {
       //create display
-      displayCommunicationExecutor_ = Executors.newSingleThreadExecutor((Runnable r)
+      displayCommunicationExecutor_ = Executors.newSingleThreadScheduledExecutor((Runnable r)
               -> new Thread(r, "Image viewer communication thread"));
 
       viewer_ = new NDViewer(this, (ViewerAcquisitionInterface) acq_,
@@ -90,45 +170,181 @@ public class RemoteViewerStorageAdapter implements DataSourceInterface, DataSink
       //add functions so display knows how to parse time and z infomration from image tags
       viewer_.setReadTimeMetadataFunction((JSONObject tags) -> AcqEngMetadata.getElapsedTimeMs(tags));
       viewer_.setReadZMetadataFunction((JSONObject tags) -> AcqEngMetadata.getZPositionUm(tags));
+      displayCommunicationExecutor_.scheduleWithFixedDelay(() -> {
+         flushViewerUpdates();
+      }, VIEWER_UPDATE_INTERVAL_MS, VIEWER_UPDATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
    }
 
    public void putImage(final TaggedImage taggedImg) {
-      HashMap<String, Integer> axes = AcqEngMetadata.getAxes(taggedImg.tags);
+      if (writeError_ != null) {
+         throw new RuntimeException("Error writing image to storage", writeError_);
+      }
+      if (writeQueue_ == null || writerExecutor_ == null) {
+         writeImage(taggedImg);
+         return;
+      }
+      try {
+         //only waits if the writer is a full queue behind
+         writeQueue_.put(taggedImg);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(ex);
+      }
+   }
+
+   private void writeLoop() {
+      List<TaggedImage> batch = new ArrayList<TaggedImage>(writeBatchSize_);
+      while (true) {
+         try {
+            batch.add(writeQueue_.take());
+            writeQueue_.drainTo(batch, writeBatchSize_ - 1);
+            for (TaggedImage image : batch) {
+               if (image.tags == null && image.pix == null) {
+                  return; //everything before it has been written
+               }
+               writeImage(image);
+            }
+            batch.clear();
+         } catch (InterruptedException ex) {
+            return;
+         } catch (Throwable t) {
+            t.printStackTrace();
+            writeError_ = t;
+            batch.clear();
+         }
+      }
+   }
+
+   /**
+    * Wait for all queued images to be written
+    */
+   private void flushWriteQueue() {
+      if (writerExecutor_ == null) {
+         return;
+      }
+      try {
+         writeQueue_.put(new TaggedImage(null, null));
+         writerExecutor_.shutdown();
+         writerExecutor_.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         writerExecutor_.shutdownNow();
+      }
+   }
+
+   /**
+    * @return number of images waiting for the writer thread
+    */
+   public int getWriteQueueSize() {
+      return writeQueue_ == null ? 0 : writeQueue_.size();
+   }
+
+   public long getNumImagesWritten() {
+      return numImagesWritten_.get();
+   }
+
+   /**
+    * @return average time spent writing one image to storage
+    */
+   public double getMeanWriteTimeMs() {
+      long n = numImagesWritten_.get();
+      return n == 0 ? 0 : totalWriteTimeNs_.get() / 1e6 / n;
+   }
+
+   /**
+    * @return longest time spent writing one image to storage
+    */
+   public double getMaxWriteTimeMs() {
+      return maxWriteTimeNs_.get() / 1e6;
+   }
+
+   private void writeImage(final TaggedImage taggedImg) {
+      long start = System.nanoTime();
+      //read everything needed from the tags once, rather than at each use
+      ParsedImageMetadata metadata = new ParsedImageMetadata(taggedImg.tags, xyTiled_);
       if (xyTiled_) {
-         int row = AcqEngMetadata.getGridRow(taggedImg.tags);
-         int col = AcqEngMetadata.getGridCol(taggedImg.tags);
-         storage_.putImage(taggedImg, axes, row, col);
+         storage_.putImage(taggedImg, metadata.axes_, metadata.row_, metadata.col_);
       } else {
-         storage_.putImage(taggedImg, axes);
+         storage_.putImage(taggedImg, metadata.axes_);
+      }
+      long writeTime = System.nanoTime() - start;
+      if (displayCache_ != null) {
+         displayCache_.invalidate(metadata.axes_, metadata.row_, metadata.col_);
       }
+      numImagesWritten_.incrementAndGet();
+      totalWriteTimeNs_.addAndGet(writeTime);
+      maxWriteTimeNs_.accumulateAndGet(writeTime, Math::max);
 
       //Check if new viewer to init display settings
-      String channelName = AcqEngMetadata.getChannelName(taggedImg.tags);
-      boolean newChannel = !channelNames_.contains(channelName);
-      if (newChannel) {
-         channelNames_.add(channelName);
-      }
+      String channelName = metadata.channelName_;
+      boolean newChannel = channelNames_.add(channelName);
 
       if (showViewer_) {
-         //put on different thread to not slow down acquisition
-         displayCommunicationExecutor_.submit(new Runnable() {
-            @Override
-            public void run() {
-               if (newChannel) {
-                  //Insert a preferred color. Make a copy just in case concurrency issues
-                  String chName = AcqEngMetadata.getChannelName(taggedImg.tags);
-//                  Color c = Color.white; //TODO could add color memory here
-                  int bitDepth = AcqEngMetadata.getBitDepth(taggedImg.tags);
-                  viewer_.setChannelDisplaySettings(chName, null, bitDepth);
-               }
-               HashMap<String, Integer> axes = AcqEngMetadata.getAxes(taggedImg.tags);
-               if (xyTiled_) {
-                  //remove this so the viewer doesn't show it
-                  axes.remove(AcqEngMetadata.POSITION_AXIS);
-               }
-               viewer_.newImageArrived(axes, AcqEngMetadata.getChannelName(taggedImg.tags));
+         HashMap<String, Integer> viewerAxes = new HashMap<String, Integer>(metadata.axes_);
+         if (xyTiled_) {
+            //remove this so the viewer doesn't show it
+            viewerAxes.remove(AcqEngMetadata.POSITION_AXIS);
+         }
+         if (newChannel) {
+            synchronized (this) {
+               pendingNewChannels_.put(channelName, AcqEngMetadata.getBitDepth(taggedImg.tags));
             }
-         });
+         }
+         queueViewerUpdate(new PendingViewerUpdate(viewerAxes, channelName));
+      }
+   }
+
+   /**
+    * Queue an update to be sent to the viewer on its next refresh. Only the
+    * newest image of each channel is kept, plus the images that extend the
+    * range of an axis, so the viewer's scrollbars still cover everything
+    */
+   private void queueViewerUpdate(PendingViewerUpdate update) {
+      List<String> extendedRanges = new ArrayList<String>();
+      for (Map.Entry<String, Integer> entry : update.axes_.entrySet()) {
+         String axis = entry.getKey();
+         int value = entry.getValue();
+         if (!minAxisValues_.containsKey(axis) || value < minAxisValues_.get(axis)) {
+            minAxisValues_.put(axis, value);
+            extendedRanges.add("min " + axis);
+         }
+         if (!maxAxisValues_.containsKey(axis) || value > maxAxisValues_.get(axis)) {
+            maxAxisValues_.put(axis, value);
+            extendedRanges.add("max " + axis);
+         }
+      }
+      synchronized (this) {
+         for (String key : extendedRanges) {
+            putPendingUpdate(key, update);
+         }
+         //moved to the end so the viewer ends up showing the newest image
+         putPendingUpdate("channel " + update.channel_, update);
+      }
+   }
+
+   private void putPendingUpdate(String key, PendingViewerUpdate update) {
+      pendingViewerUpdates_.remove(key);
+      pendingViewerUpdates_.put(key, update);
+   }
+
+   private void flushViewerUpdates() {
+      LinkedHashMap<String, PendingViewerUpdate> updates;
+      LinkedHashMap<String, Integer> newChannels;
+      synchronized (this) {
+         if (pendingViewerUpdates_.isEmpty()) {
+            return;
+         }
+         updates = pendingViewerUpdates_;
+         pendingViewerUpdates_ = new LinkedHashMap<String, PendingViewerUpdate>();
+         newChannels = pendingNewChannels_;
+         pendingNewChannels_ = new LinkedHashMap<String, Integer>();
+      }
+      for (Map.Entry<String, Integer> channel : newChannels.entrySet()) {
+         viewer_.setChannelDisplaySettings(channel.getKey(), null, channel.getValue());
+      }
+      //the same image can be queued under several keys
+      for (PendingViewerUpdate update : new LinkedHashSet<PendingViewerUpdate>(updates.values())) {
+         viewer_.newImageArrived(update.axes_, update.channel_);
       }
    }
   
@@ -141,11 +357,70 @@ public class RemoteViewerStorageAdapter implements DataSourceInterface, DataSink
    @Override
    public TaggedImage getImageForDisplay(HashMap<String, Integer> axes, int resolutionindex,
            double xOffset, double yOffset, int imageWidth, int imageHeight) {
-
-       int resIndex = 0;
-      return storage_.getStitchedImage(
+      //levels may not exist yet, e.g. while a deferred pyramid hasn't been built
+      int resIndex = Math.max(0, Math.min(resolutionindex, getMaxResolutionIndex()));
+      TaggedImage image = displayCache_.getStitchedImage(
               axes, resIndex, (int) xOffset, (int) yOffset,
               imageWidth, imageHeight);
+      prefetchNeighbors(axes, resIndex, (int) xOffset, (int) yOffset, imageWidth, imageHeight);
+      return image;
+   }
+
+   /**
+    * Read the regions next to the one being displayed in the background, so
+    * that panning to them doesn't wait on the disk. Only the most recent
+    * request is prefetched for; older ones are skipped
+    */
+   private void prefetchNeighbors(HashMap<String, Integer> axes, int resIndex,
+           int xOffset, int yOffset, int width, int height) {
+      if (prefetchExecutor_.isShutdown()) {
+         return;
+      }
+      final long generation = prefetchGeneration_.incrementAndGet();
+      final HashMap<String, Integer> axesCopy = new HashMap<String, Integer>(axes);
+      try {
+         prefetchExecutor_.submit(() -> {
+            int[][] neighborOffsets = {{-width, 0}, {width, 0}, {0, -height}, {0, height}};
+            for (int[] offset : neighborOffsets) {
+               if (prefetchGeneration_.get() != generation) {
+                  return;
+               }
+               try {
+                  displayCache_.getStitchedImage(axesCopy, resIndex, xOffset + offset[0], yOffset + offset[1],
+                          width, height);
+               } catch (Exception e) {
+                  //Nothing there, or storage closed; nothing to prefetch
+                  return;
+               }
+            }
+         });
+      } catch (RejectedExecutionException e) {
+         //closed since the check above
+      }
+   }
+
+   /**
+    * Set the memory limit of the cache of image data read for display
+    *
+    * @param megabytes
+    */
+   public void setDisplayCacheSize(double megabytes) {
+      displayCacheBytes_ = (long) (megabytes * 1024 * 1024);
+      if (displayCache_ != null) {
+         displayCache_.setMaxBytes(displayCacheBytes_);
+      }
+   }
+
+   public long getDisplayCacheHits() {
+      return displayCache_ == null ? 0 : displayCache_.getHits();
+   }
+
+   public long getDisplayCacheMisses() {
+      return displayCache_ == null ? 0 : displayCache_.getMisses();
+   }
+
+   public long getDisplayCacheEvictions() {
+      return displayCache_ == null ? 0 : displayCache_.getEvictions();
    }
 
    @Override
@@ -159,27 +434,101 @@ public class RemoteViewerStorageAdapter implements DataSourceInterface, DataSink
    }
    
    public void close() {
-      //anything should be done here? cant think of it now...
+      prefetchExecutor_.shutdownNow();
    }
 
    ///////////// Data sink interface required by acq eng /////////////
    @Override
    public void finished() {
+      flushWriteQueue();
+      //errors in the last images written never reach putImage
+      Throwable writeError = writeError_;
       if (storage_ != null) {
          if (!storage_.isFinished()) {
             //Get most up to date display settings
-            if (viewer_ != null) {
-               JSONObject displaySettings = viewer_.getDisplaySettingsJSON();
-               storage_.setDisplaySettings(displaySettings);
+            JSONObject displaySettings = viewer_ == null ? null : viewer_.getDisplaySettingsJSON();
+            if (deferPyramid_) {
+               //can take a long time for a large area, so the acquisition
+               //doesn't wait on it. isFinishedWriting reports when it's done
+               ExecutorService pyramidExecutor = Executors.newSingleThreadExecutor(
+                       (Runnable r) -> new Thread(r, "Deferred pyramid thread"));
+               pyramidBuild_ = pyramidExecutor.submit(() -> {
+                  storage_.increaseMaxResolutionLevel(getDeferredPyramidMaxResLevel());
+                  //blocks read while the levels were being built may be incomplete
+                  displayCache_.invalidateAll();
+                  finishWriting(displaySettings);
+               });
+               pyramidExecutor.shutdown();
+            } else {
+               finishWriting(displaySettings);
             }
-            storage_.finishedWriting();
          }
       }
       
       if (showViewer_) {
          viewer_.setWindowTitle(name_ + " (Finished)");
+         //send whatever is still queued before stopping the refreshes
+         displayCommunicationExecutor_.submit(() -> {
+            flushViewerUpdates();
+         });
          displayCommunicationExecutor_.shutdown();
-      }   
+      }
+      if (writeError != null) {
+         throw new RuntimeException("Error writing image to storage", writeError);
+      }
+   }
+
+   private void finishWriting(JSONObject displaySettings) {
+      if (displaySettings != null) {
+         storage_.setDisplaySettings(displaySettings);
+      }
+      storage_.finishedWriting();
+   }
+
+   /**
+    * @return true once all data is on disk, including the lower resolution
+    * levels of a deferred pyramid, which are built after the acquisition
+    * finishes
+    * @throws RuntimeException if building the lower resolution levels failed
+    */
+   public boolean isFinishedWriting() {
+      Future<?> pyramidBuild = pyramidBuild_;
+      if (pyramidBuild == null) {
+         return storage_ == null || storage_.isFinished();
+      }
+      if (!pyramidBuild.isDone()) {
+         return false;
+      }
+      try {
+         pyramidBuild.get();
+      } catch (ExecutionException e) {
+         throw new RuntimeException("Error building lower resolution levels", e.getCause());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(e);
+      }
+      return true;
+   }
+
+   /**
+    * @return the requested max resolution level, or if there isn't one, the
+    * level at which the whole acquired area fits in about one tile
+    */
+   private int getDeferredPyramidMaxResLevel() {
+      if (maxResLevel_ != null) {
+         return maxResLevel_;
+      }
+      int[] bounds = storage_.getImageBounds();
+      if (bounds == null) {
+         return 0;
+      }
+      long extent = Math.max(bounds[2] - bounds[0], bounds[3] - bounds[1]);
+      int tileSize = Math.max(1, Math.max(storage_.getTileWidth(), storage_.getTileHeight()));
+      int level = 0;
+      while ((extent >> level) > tileSize) {
+         level++;
+      }
+      return level;
    }
 
    @Override
@@ -199,3 +548,31 @@ public class RemoteViewerStorageAdapter implements DataSourceInterface, DataSink
       return tileOverlapY_;
    }
 }
+
+class PendingViewerUpdate {
+
+   final HashMap<String, Integer> axes_;
+   final String channel_;
+
+   PendingViewerUpdate(HashMap<String, Integer> axes, String channel) {
+      axes_ = axes;
+      channel_ = channel;
+   }
+}
+
+/**
+ * The parts of an image's metadata needed to store and display it
+ */
+class ParsedImageMetadata {
+
+   final HashMap<String, Integer> axes_;
+   final String channelName_;
+   final int row_, col_;
+
+   ParsedImageMetadata(JSONObject tags, boolean xyTiled) {
+      axes_ = AcqEngMetadata.getAxes(tags);
+      channelName_ = AcqEngMetadata.getChannelName(tags);
+      row_ = xyTiled ? AcqEngMetadata.getGridRow(tags) : 0;
+      col_ = xyTiled ? AcqEngMetadata.getGridCol(tags) : 0;
+   }
+}
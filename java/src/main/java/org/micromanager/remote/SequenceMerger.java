@@ -0,0 +1,181 @@
+package org.micromanager.remote;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import mmcorej.CMMCore;
+import mmcorej.Configuration;
+import mmcorej.PropertySetting;
+import org.micromanager.acqj.api.AcquisitionEvent;
+
+/**
+ * Merges runs of consecutive events that only differ in things the hardware
+ * can sequence (focus stage, XY stage, exposure, channel properties) into
+ * single sequenced events, so that they run as one hardware-triggered burst
+ * rather than one software-timed snap each. Events are merged lazily as they
+ * are taken from the wrapped iterator
+ *
+ * @author henrypinkard
+ */
+public class SequenceMerger {
+
+   private final CMMCore core_;
+   private final AtomicLong numEventsIn_ = new AtomicLong();
+   private final AtomicLong numEventsMerged_ = new AtomicLong();
+   private final AtomicLong numSequences_ = new AtomicLong();
+   private final AtomicLong longestSequence_ = new AtomicLong();
+
+   public SequenceMerger(CMMCore core) {
+      core_ = core;
+   }
+
+   /**
+    * @param events events as sent from python
+    * @return the same events, with sequenceable runs merged
+    */
+   public Iterator<AcquisitionEvent> wrap(Iterator<AcquisitionEvent> events) {
+      return new MergingIterator(events);
+   }
+
+   public long getNumEventsMerged() {
+      return numEventsMerged_.get();
+   }
+
+   public long getNumSequences() {
+      return numSequences_.get();
+   }
+
+   /**
+    * @return human readable summary of what has been merged so far
+    */
+   public String getReport() {
+      return numEventsMerged_.get() + " of " + numEventsIn_.get() + " events merged into "
+              + numSequences_.get() + " hardware sequences (longest " + longestSequence_.get() + ")";
+   }
+
+   private static boolean canBePartOfSequence(AcquisitionEvent e) {
+      return e.shouldAcquireImage() && !e.isAcquisitionFinishedEvent()
+              && !e.isAcquisitionSequenceEndEvent() && e.getSequence() == null;
+   }
+
+   /**
+    * @return the maximum length of a sequence containing both events, or 0
+    * if they can't be in the same sequence
+    */
+   private int getMaxSequenceLength(AcquisitionEvent first, AcquisitionEvent next) {
+      if (!canBePartOfSequence(first) || !canBePartOfSequence(next)) {
+         return 0;
+      }
+      //time lapse waits can't be done by the hardware
+      if (!Objects.equals(first.getMinimumStartTimeAbsolute(), next.getMinimumStartTimeAbsolute())) {
+         return 0;
+      }
+      int maxLength = Integer.MAX_VALUE;
+      try {
+         if (!Objects.equals(first.getZPosition(), next.getZPosition())) {
+            String focus = core_.getFocusDevice();
+            if (focus == null || focus.isEmpty() || !core_.isStageSequenceable(focus)) {
+               return 0;
+            }
+            maxLength = Math.min(maxLength, core_.getStageSequenceMaxLength(focus));
+         }
+         if (!Objects.equals(first.getXPosition(), next.getXPosition())
+                 || !Objects.equals(first.getYPosition(), next.getYPosition())) {
+            String xyStage = core_.getXYStageDevice();
+            if (xyStage == null || xyStage.isEmpty() || !core_.isXYStageSequenceable(xyStage)) {
+               return 0;
+            }
+            maxLength = Math.min(maxLength, core_.getXYStageSequenceMaxLength(xyStage));
+         }
+         if (!Objects.equals(first.getExposure(), next.getExposure())) {
+            String camera = core_.getCameraDevice();
+            if (!core_.isExposureSequenceable(camera)) {
+               return 0;
+            }
+            maxLength = Math.min(maxLength, core_.getExposureSequenceMaxLength(camera));
+         }
+         if (!Objects.equals(first.getChannelGroup(), next.getChannelGroup())
+                 || !Objects.equals(first.getChannelConfig(), next.getChannelConfig())) {
+            if (first.getChannelGroup() == null || next.getChannelGroup() == null
+                    || !first.getChannelGroup().equals(next.getChannelGroup())) {
+               return 0;
+            }
+            //every property either channel config sets has to be sequenceable
+            Set<String> checked = new HashSet<String>();
+            for (String channel : new String[]{first.getChannelConfig(), next.getChannelConfig()}) {
+               Configuration config = core_.getConfigData(first.getChannelGroup(), channel);
+               for (long i = 0; i < config.size(); i++) {
+                  PropertySetting setting = config.getSetting(i);
+                  if (!checked.add(setting.getDeviceLabel() + "-" + setting.getPropertyName())) {
+                     continue;
+                  }
+                  if (!core_.isPropertySequenceable(setting.getDeviceLabel(), setting.getPropertyName())) {
+                     return 0;
+                  }
+                  maxLength = Math.min(maxLength, core_.getPropertySequenceMaxLength(
+                          setting.getDeviceLabel(), setting.getPropertyName()));
+               }
+            }
+         }
+      } catch (Exception ex) {
+         //can't tell, so leave the events as they are
+         return 0;
+      }
+      return maxLength;
+   }
+
+   private class MergingIterator implements Iterator<AcquisitionEvent> {
+
+      private final Iterator<AcquisitionEvent> source_;
+      private AcquisitionEvent lookahead_;
+
+      private MergingIterator(Iterator<AcquisitionEvent> source) {
+         source_ = source;
+      }
+
+      @Override
+      public boolean hasNext() {
+         return lookahead_ != null || source_.hasNext();
+      }
+
+      @Override
+      public AcquisitionEvent next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+         AcquisitionEvent first = lookahead_ != null ? lookahead_ : source_.next();
+         lookahead_ = null;
+         numEventsIn_.incrementAndGet();
+         List<AcquisitionEvent> run = new ArrayList<AcquisitionEvent>();
+         run.add(first);
+         int maxLength = Integer.MAX_VALUE;
+         AcquisitionEvent previous = first;
+         while (source_.hasNext() && run.size() < maxLength) {
+            AcquisitionEvent candidate = source_.next();
+            //compare to the previous event so each step of the run is checked
+            int candidateMax = getMaxSequenceLength(previous, candidate);
+            if (candidateMax <= run.size()) {
+               lookahead_ = candidate;
+               break;
+            }
+            numEventsIn_.incrementAndGet();
+            maxLength = Math.min(maxLength, candidateMax);
+            run.add(candidate);
+            previous = candidate;
+         }
+         if (run.size() == 1) {
+            return first;
+         }
+         numSequences_.incrementAndGet();
+         numEventsMerged_.addAndGet(run.size());
+         longestSequence_.accumulateAndGet(run.size(), Math::max);
+         return new AcquisitionEvent(run);
+      }
+   }
+
+}
@@ -0,0 +1,141 @@
+package org.micromanager.remote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.internal.zmq.ZMQUtil;
+
+/**
+ * Fixed number of equally sized slots in a memory mapped file, used to hand
+ * pixel data to a python process on the same machine without sending it over
+ * a socket. Each slot starts with a state byte: this side sets it to FULL
+ * after writing pixels, and the reader sets it back to FREE once it has
+ * copied them out. Only a small descriptor of the slot is then sent over the
+ * socket, and that message is what tells the reader the slot is ready
+ *
+ * @author henrypinkard
+ */
+class SharedMemoryRingBuffer {
+
+   private static final byte FREE = 0;
+   private static final byte FULL = 1;
+   //state byte is padded so pixel data stays 8 byte aligned
+   private static final int SLOT_HEADER_SIZE = 8;
+   private static final long FREE_SLOT_POLL_NS = TimeUnit.MICROSECONDS.toNanos(100);
+   //a single mapping can't be larger than this
+   private static final long MAX_MAPPED_BYTES = Integer.MAX_VALUE;
+
+   private final File file_;
+   private final RandomAccessFile raf_;
+   private final MappedByteBuffer buffer_;
+   private final int numSlots_;
+   private final int slotSize_;
+   private int nextSlot_ = 0;
+
+   SharedMemoryRingBuffer(int numSlots, int slotSize) throws IOException {
+      if (!canMap(numSlots, slotSize)) {
+         throw new IOException(numSlots + " slots of " + slotSize + " bytes are too big to map");
+      }
+      numSlots_ = numSlots;
+      slotSize_ = slotSize;
+      file_ = File.createTempFile("pycromanager_images", ".buf");
+      file_.deleteOnExit();
+      raf_ = new RandomAccessFile(file_, "rw");
+      buffer_ = raf_.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+              (long) numSlots * (SLOT_HEADER_SIZE + slotSize));
+      buffer_.order(ZMQUtil.BINARY_FRAME_BYTE_ORDER);
+   }
+
+   /**
+    * @return true if the total size of the slots fits in a single mapping
+    */
+   static boolean canMap(int numSlots, int slotSize) {
+      return (long) numSlots * (SLOT_HEADER_SIZE + (long) slotSize) <= MAX_MAPPED_BYTES;
+   }
+
+   /**
+    * @return size in bytes of a byte[] or short[], or -1 for other types
+    */
+   static int getNumBytes(Object pix) {
+      if (pix instanceof byte[]) {
+         return ((byte[]) pix).length;
+      } else if (pix instanceof short[]) {
+         return 2 * ((short[]) pix).length;
+      }
+      return -1;
+   }
+
+   /**
+    * @return true if an array of this many bytes fits in a slot
+    */
+   boolean fits(int numBytes) {
+      return numBytes <= slotSize_;
+   }
+
+   /**
+    * Copy the pixels into the next slot, waiting for the reader to free it if
+    * needed
+    *
+    * @param pix byte[] or short[]
+    * @return JSON descriptor of where the reader can find the pixels
+    * @throws InterruptedException
+    */
+   JSONObject write(Object pix) throws InterruptedException {
+      int slot = nextSlot_;
+      nextSlot_ = (nextSlot_ + 1) % numSlots_;
+      long stateOffset = slot * (SLOT_HEADER_SIZE + (long) slotSize_);
+      long offset = stateOffset + SLOT_HEADER_SIZE;
+      //both fit in an int, since canMap was checked on construction
+      while (buffer_.get((int) stateOffset) != FREE) {
+         LockSupport.parkNanos(FREE_SLOT_POLL_NS);
+         if (Thread.interrupted()) {
+            throw new InterruptedException();
+         }
+      }
+      ByteBuffer slotBuffer = buffer_.duplicate();
+      slotBuffer.order(ZMQUtil.BINARY_FRAME_BYTE_ORDER);
+      slotBuffer.position((int) offset);
+      int length;
+      if (pix instanceof byte[]) {
+         slotBuffer.put((byte[]) pix);
+         length = ((byte[]) pix).length;
+      } else if (pix instanceof short[]) {
+         slotBuffer.asShortBuffer().put((short[]) pix);
+         length = ((short[]) pix).length;
+      } else {
+         throw new RuntimeException("Unsupported pixel type " + pix.getClass());
+      }
+      buffer_.put((int) stateOffset, FULL);
+      try {
+         JSONObject json = new JSONObject();
+         json.put("type", ZMQUtil.getArrayTypeName(pix));
+         json.put("file", file_.getAbsolutePath());
+         json.put("slot", slot);
+         json.put("state-offset", stateOffset);
+         json.put("offset", offset);
+         json.put("length", length);
+         return json;
+      } catch (JSONException ex) {
+         throw new RuntimeException(ex);
+      }
+   }
+
+   void close() {
+      try {
+         raf_.close();
+      } catch (IOException ex) {
+         ex.printStackTrace();
+      }
+      //May fail on windows while the buffer is still mapped, in which case
+      //deleteOnExit gets it
+      file_.delete();
+   }
+
+}
@@ -5,12 +5,22 @@ from inspect import signature
 import copy
 import types
 import time
-from pycromanager.core import serialize_array, deserialize_array, Bridge
+from pycromanager.core import serialize_array, serialize_array_binary, deserialize_array, Bridge, \
+    _BINARY_ARRAY_TYPE_TO_DTYPE
 from pycromanager.data import Dataset
 import warnings
 import os.path
 import queue
 
+# Maximum number of events sent to the Java side in one message
+_EVENT_CHUNK_SIZE = 1000
+# Maximum number of images the Java side writes to disk at once when saving_queue_size is used
+_SAVING_BATCH_SIZE = 16
+# Number of images that can be waiting in shared memory for the image processor
+_SHARED_MEMORY_SLOTS = 16
+# How long await_completion waits for each image processor thread/process to shut down
+_PROCESSOR_JOIN_TIMEOUT_S = 10
+
 ### These functions outside class to prevent problems with pickling when running them in differnet process
 
 def _event_sending_fn(event_port, event_queue, debug=False):
@@ -25,11 +35,21 @@ def _event_sending_fn(event_port, event_queue, debug=False):
             event_socket.send({'events': [{'special': 'acquisition-end'}]})
             event_socket.close()
             return
-        event_socket.send({'events': events if type(events) == list else [events]})
+        if isinstance(events, dict) and 'compact-events' in events:
+            event_socket.send(events)
+        elif type(events) == list and len(events) > _EVENT_CHUNK_SIZE:
+            # send long sequences in pieces so the Java side can start on them before the whole thing arrives
+            for start in range(0, len(events), _EVENT_CHUNK_SIZE):
+                chunk = {'events': events[start:start + _EVENT_CHUNK_SIZE]}
+                if start + _EVENT_CHUNK_SIZE < len(events):
+                    chunk['sequence-continues'] = True
+                event_socket.send(chunk)
+        else:
+            event_socket.send({'events': events if type(events) == list else [events]})
         if debug:
             print('sent events')
 
-def _acq_hook_startup_fn(pull_port, push_port, hook_connected_evt, event_queue, hook_fn, debug):
+def _acq_hook_startup_fn(pull_port, push_port, hook_connected_evt, event_queue, hook_fn, debug, non_mutating=False):
     bridge = Bridge(debug=debug)
 
     push_socket = bridge._connect_push(pull_port)
@@ -45,6 +65,8 @@ def _acq_hook_startup_fn(pull_port, push_port, hook_connected_evt, event_queue,
             pull_socket.close()
             return
         else:
+            # id the Java side uses to match the reply to the event
+            hook_id = event_msg.pop('hook-id', None)
             if 'events' in event_msg.keys():
                 event_msg = event_msg['events'] #convert from sequence
             params = signature(hook_fn).parameters
@@ -56,21 +78,46 @@ def _acq_hook_startup_fn(pull_port, push_port, hook_connected_evt, event_queue,
                         new_event_msg = hook_fn(event_msg, bridge, event_queue)
                 except Exception as e:
                     warnings.warn('exception in acquisition hook: {}'.format(e))
-                    continue
+                    # reply with the event unchanged, so the Java side isn't left waiting for it
+                    new_event_msg = event_msg
             else:
                 raise Exception('Incorrect number of arguments for hook function. Must be 1 or 3')
+            if non_mutating:
+                # Java side isn't waiting for the event to come back
+                continue
 
         if isinstance(new_event_msg, list):
             new_event_msg = {'events': new_event_msg} #convert back to the expected format for a sequence
+        if isinstance(new_event_msg, dict) and hook_id is not None:
+            new_event_msg = dict(new_event_msg, **{'hook-id': hook_id})
         push_socket.send(new_event_msg)
 
-def _processor_startup_fn(pull_port, push_port, sockets_connected_evt, process_fn, event_queue, debug):
+def _read_shared_memory_pixels(descriptor, memmaps):
+    """
+    Copy pixels out of a slot of the memory mapped file the Java side wrote them to, and mark the slot as free
+    so it can be reused
+
+    :param descriptor: dict describing where in the file the pixels are
+    :param memmaps: dict of file paths to already opened memmaps
+    """
+    path = descriptor['file']
+    if path not in memmaps:
+        memmaps[path] = np.memmap(path, dtype=np.uint8, mode='r+')
+    mm = memmaps[path]
+    pixels = np.frombuffer(mm, dtype=_BINARY_ARRAY_TYPE_TO_DTYPE[descriptor['type']],
+                           count=descriptor['length'], offset=descriptor['offset']).copy()
+    mm[descriptor['state-offset']] = 0
+    return pixels
+
+def _processor_startup_fn(pull_port, push_port, sockets_connected_evt, process_fn, event_queue, debug,
+                          bind_push=True, finished_evt=None):
     bridge = Bridge(debug=debug)
-    push_socket = bridge._connect_push(pull_port)
+    push_socket = bridge._connect_push(pull_port, bind=bind_push)
     pull_socket = bridge._connect_pull(push_port)
     if debug:
         print('image processing sockets connected')
     sockets_connected_evt.set()
+    memmaps = {}
 
     def process_and_sendoff(image_tags_tuple):
         if len(image_tags_tuple) != 2:
@@ -79,22 +126,50 @@ def _processor_startup_fn(pull_port, push_port, sockets_connected_evt, process_f
             raise Exception('Processed image pixels must have same dtype as input image pixels, '
                             'but instead they were {} and {}'.format(image_tags_tuple[0].dtype, pixels.dtype))
 
-        processed_img = {'pixels': serialize_array(image_tags_tuple[0]), 'metadata': image_tags_tuple[1]}
-        push_socket.send(processed_img)
+        if binary_pixels:
+            processed_img = {'pixels': {'frame': 1}, 'metadata': image_tags_tuple[1]}
+            if sequence is not None:
+                processed_img['sequence'] = sequence
+            push_socket.send(processed_img, binary_frames=[serialize_array_binary(image_tags_tuple[0])])
+        else:
+            processed_img = {'pixels': serialize_array(image_tags_tuple[0]), 'metadata': image_tags_tuple[1]}
+            if sequence is not None:
+                processed_img['sequence'] = sequence
+            push_socket.send(processed_img)
+
+    def shut_down():
+        push_socket.close()
+        pull_socket.close()
+        memmaps.clear()
 
     while True:
         message = None
         while message is None:
+            if finished_evt is not None and finished_evt.is_set():
+                # another worker got the finished signal
+                shut_down()
+                return
             message = pull_socket.receive(timeout=30) #check for new message
 
         if 'special' in message and message['special'] == 'finished':
             push_socket.send(message) #Continue propagating the finihsed signal
-            push_socket.close()
-            pull_socket.close()
+            if finished_evt is not None:
+                # The Java side sends a single finished signal to whichever worker it reaches, once every
+                # image has been processed, so the others are told here
+                finished_evt.set()
+            shut_down()
             return
 
         metadata = message['metadata']
-        pixels = deserialize_array(message['pixels'])
+        # echoed back so the Java side can put results from several workers back in order
+        sequence = message.get('sequence')
+        if isinstance(message['pixels'], dict) and 'file' in message['pixels']:
+            pixels = _read_shared_memory_pixels(message['pixels'], memmaps)
+            binary_pixels = True
+        else:
+            # reply in the same format the pixels came in
+            binary_pixels = 'binary-frames' in message
+            pixels = deserialize_array(message['pixels'], message.get('binary-frames'))
         image = np.reshape(pixels, [metadata['Height'], metadata['Width']])
 
         params = signature(process_fn).parameters
@@ -107,18 +182,19 @@ def _processor_startup_fn(pull_port, push_port, sockets_connected_evt, process_f
                     processed = process_fn(image, metadata, bridge, event_queue)
             except Exception as e:
                 warnings.warn('exception in image processor: {}'.format(e))
-                continue
         else:
             raise Exception('Incorrect number of arguments for image processing function, must be 2 or 4')
 
-        if processed is None:
-            continue
-
         if type(processed) == list:
             for image in processed:
                 process_and_sendoff(image)
-        else:
+        elif processed is not None:
             process_and_sendoff(processed)
+        # let the Java side know it can send another image
+        processed_msg = {'special': 'processed'}
+        if sequence is not None:
+            processed_msg['sequence'] = sequence
+        push_socket.send(processed_msg)
 
 
 
@@ -126,7 +202,10 @@ class Acquisition(object):
     def __init__(self, directory=None, name=None, image_process_fn=None,
                  pre_hardware_hook_fn=None, post_hardware_hook_fn=None, post_camera_hook_fn=None,
                  show_display=True, tile_overlap=None, max_multi_res_index=None,
-                 magellan_acq_index=None, magellan_explore=False, process=False, debug=False):
+                 magellan_acq_index=None, magellan_explore=False, process=False, shared_memory_transport=False,
+                 max_images_in_flight=None, overflow_policy='block', image_process_workers=1,
+                 image_process_ordered=True, non_mutating_hooks=False, hook_timeout_us=None,
+                 merge_hardware_sequences=False, saving_queue_size=0, defer_multi_res_pyramid=False, debug=False):
         """
         :param directory: saving directory for this acquisition. Required unless an image process function will be
             implemented that diverts images from saving
@@ -175,6 +254,43 @@ class Acquisition(object):
             caused by Python's Global Interpreter Lock, but also creates complications on Windows-based
             systems
         :type process: boolean
+        :param shared_memory_transport: Pass images to image_process_fn through a memory mapped file rather than
+            over a socket. Faster for large images and high frame rates, but requires Python and Java to be running
+            on the same machine
+        :type shared_memory_transport: boolean
+        :param max_images_in_flight: Maximum number of images that can be waiting for or running through
+            image_process_fn at once. If not given, there is no limit, and a slow image_process_fn lets images pile
+            up in memory
+        :type max_images_in_flight: int
+        :param overflow_policy: What to do with new images when max_images_in_flight is reached: 'block' holds up
+            the acquisition until image_process_fn catches up, 'drop-oldest' discards the image that has been
+            waiting longest, 'drop-newest' discards the new image
+        :type overflow_policy: str
+        :param image_process_workers: Number of threads (or processes, if process=True) to run image_process_fn on
+            in parallel. Each image is processed by one of them
+        :type image_process_workers: int
+        :param image_process_ordered: When using more than one image_process_worker, pass processed images on in
+            the order they were acquired. If False, they are passed on as soon as they are done
+        :type image_process_ordered: boolean
+        :param non_mutating_hooks: Promise that the hook functions only look at events and never change them. The
+            acquisition then goes on without waiting for them to run, and their return values are ignored
+        :type non_mutating_hooks: boolean
+        :param hook_timeout_us: Maximum time in microseconds to wait for a hook function to return an event. If it
+            takes longer, the acquisition goes on with the event unchanged. By default, waits indefinitely
+        :type hook_timeout_us: float
+        :param merge_hardware_sequences: Have the Java side look for runs of consecutive events that only differ in
+            settings the hardware can sequence (e.g. z position on a sequenceable piezo stage) and run each of them
+            as a single hardware-triggered sequence. See get_sequence_merge_report for what was merged
+        :type merge_hardware_sequences: boolean
+        :param saving_queue_size: If greater than 0, images are written to disk on a separate thread, and up to this
+            many images can be waiting to be written before the acquisition has to wait. This smooths over short
+            disk stalls. 0 writes each image before going on
+        :type saving_queue_size: int
+        :param defer_multi_res_pyramid: When tile_overlap is used, save only full resolution data while acquiring,
+            and compute the downsampled resolution levels in the background once the acquisition is done. This takes
+            the downsampling off the acquisition path, but the viewer only has full resolution data until then.
+            await_completion waits for the downsampled levels to be written
+        :type defer_multi_res_pyramid: boolean
         :param debug: print debugging stuff
         :type debug: boolean
         """
@@ -216,27 +332,45 @@ class Acquisition(object):
 
             self._remote_acq = acq_factory.create_acquisition(directory, name, show_viewer, tile_overlap is not None,
                                                               x_overlap, y_overlap,
-                                                              max_multi_res_index if max_multi_res_index is not None else -1)
+                                                              max_multi_res_index if max_multi_res_index is not None else -1,
+                                                              saving_queue_size, _SAVING_BATCH_SIZE,
+                                                              defer_multi_res_pyramid)
+            if merge_hardware_sequences:
+                self._remote_acq.set_merge_sequences(True)
         storage = self._remote_acq.get_data_sink()
+        # lower resolution levels are still being written after the acquisition finishes
+        self._deferred_pyramid_storage = storage if defer_multi_res_pyramid and storage is not None else None
         if storage is not None:
             self.disk_location = storage.get_disk_location()
 
         if image_process_fn is not None:
             processor = self.bridge.construct_java_object('org.micromanager.remote.RemoteImageProcessor')
+            # send pixels as raw binary frames rather than Base64 encoded in JSON
+            processor.set_binary_pixels(True)
+            if shared_memory_transport:
+                processor.set_shared_memory(_SHARED_MEMORY_SLOTS)
+            if max_images_in_flight is not None:
+                processor.set_flow_control(max_images_in_flight, overflow_policy)
+            if image_process_workers > 1:
+                processor.set_workers(image_process_workers, image_process_ordered)
             self._remote_acq.add_image_processor(processor)
-            self._start_processor(processor, image_process_fn, self._event_queue, process=process)
+            self._start_processor(processor, image_process_fn, self._event_queue, process=process,
+                                  num_workers=image_process_workers)
 
         if pre_hardware_hook_fn is not None:
             hook = self.bridge.construct_java_object('org.micromanager.remote.RemoteAcqHook', args=[self._remote_acq])
-            self._start_hook(hook, pre_hardware_hook_fn, self._event_queue, process=process)
+            self._start_hook(hook, pre_hardware_hook_fn, self._event_queue, process=process,
+                             non_mutating=non_mutating_hooks, timeout_us=hook_timeout_us)
             self._remote_acq.add_hook(hook, self._remote_acq.BEFORE_HARDWARE_HOOK)
         if post_hardware_hook_fn is not None:
             hook = self.bridge.construct_java_object('org.micromanager.remote.RemoteAcqHook', args=[self._remote_acq])
-            self._start_hook(hook, post_hardware_hook_fn, self._event_queue, process=process)
+            self._start_hook(hook, post_hardware_hook_fn, self._event_queue, process=process,
+                             non_mutating=non_mutating_hooks, timeout_us=hook_timeout_us)
             self._remote_acq.add_hook(hook, self._remote_acq.AFTER_HARDWARE_HOOK)
         if post_camera_hook_fn is not None:
             hook = self.bridge.construct_java_object('org.micromanager.remote.RemoteAcqHook', args=[self._remote_acq])
-            self._start_hook(hook, post_camera_hook_fn, self._event_queue, process=process)
+            self._start_hook(hook, post_camera_hook_fn, self._event_queue, process=process,
+                             non_mutating=non_mutating_hooks, timeout_us=hook_timeout_us)
             self._remote_acq.add_hook(hook, self._remote_acq.AFTER_CAMERA_HOOK)
 
 
@@ -277,6 +411,13 @@ class Acquisition(object):
         """
         while (not self._remote_acq.is_finished()):
             time.sleep(0.1)
+        while self._deferred_pyramid_storage is not None and \
+                not self._deferred_pyramid_storage.is_finished_writing():
+            time.sleep(0.1)
+        for processor_thread in getattr(self, 'processor_threads', []):
+            processor_thread.join(timeout=_PROCESSOR_JOIN_TIMEOUT_S)
+            if processor_thread.is_alive():
+                warnings.warn('{} did not shut down'.format(processor_thread.name))
 
     def acquire(self, events, keep_shutter_open=False):
         """
@@ -284,10 +425,16 @@ class Acquisition(object):
         hardware synchronization, where available), will take place across this list of events, but not
         over multiple calls of this method. A single event is a python dictionary with a specific structure
 
-        :param events: single event (i.e. a dictionary) or a list of events
+        :param events: single event (i.e. a dictionary), a list of events, or a compact description of events
+            from multi_d_acquisition_events(compact=True)
         :param keep_shutter_open: dont close and repoen the shutter between events
         """
-        if keep_shutter_open and isinstance(events, list):
+        if isinstance(events, dict) and 'compact-events' in events:
+            if keep_shutter_open:
+                events['compact-events']['template']['keep_shutter_open'] = True
+                self._event_queue.put(events)
+                events = [{'keep_shutter_open': False}] #return to autoshutter, dont acquire an image
+        elif keep_shutter_open and isinstance(events, list):
             for e in events:
                 e['keep_shutter_open'] = True
             events.append({'keep_shutter_open': False}) #return to autoshutter, dont acquire an image
@@ -296,42 +443,63 @@ class Acquisition(object):
             events = [events, {'keep_shutter_open': False}]  #return to autoshutter, dont acquire an image
         self._event_queue.put(events)
 
-    def _start_hook(self, remote_hook, remote_hook_fn, event_queue, process):
+    def get_sequence_merge_report(self):
+        """
+        :return: summary of the events that were merged into hardware sequences, or None if
+            merge_hardware_sequences was not used
+        """
+        return self._remote_acq.get_sequence_merge_report()
+
+    def _start_hook(self, remote_hook, remote_hook_fn, event_queue, process, non_mutating=False, timeout_us=None):
         hook_connected_evt = multiprocessing.Event() if process else threading.Event()
+        if non_mutating:
+            remote_hook.set_non_mutating(True)
+        if timeout_us is not None:
+            remote_hook.set_timeout(timeout_us)
 
         pull_port = remote_hook.get_pull_port()
         push_port = remote_hook.get_push_port()
 
         hook_thread = (multiprocessing.Process if process else threading.Thread)(
                         target=_acq_hook_startup_fn, name='AcquisitionHook',
-                        args=(pull_port, push_port, hook_connected_evt, event_queue, remote_hook_fn, self._debug))
+                        args=(pull_port, push_port, hook_connected_evt, event_queue, remote_hook_fn, self._debug,
+                              non_mutating))
             # if process else threading.Thread(target=_acq_hook_fn, args=(), name='AcquisitionHook')
         hook_thread.start()
 
         hook_connected_evt.wait()  # wait for push/pull sockets to connect
 
-    def _start_processor(self, processor, process_fn, event_queue, process):
+    def _start_processor(self, processor, process_fn, event_queue, process, num_workers=1):
         # this must start first
         processor.start_pull()
 
-        sockets_connected_evt = multiprocessing.Event() if process else threading.Event()
-
         pull_port = processor.get_pull_port()
         push_port = processor.get_push_port()
 
-
-        self.processor_thread = (multiprocessing.Process if process else threading.Thread)(
+        # with several workers, the Java side binds so that all of them can connect to it
+        bind_push = num_workers == 1
+        # set by the worker that gets the finished signal, to shut down the rest
+        finished_evt = None
+        if num_workers > 1:
+            finished_evt = multiprocessing.Event() if process else threading.Event()
+        self.processor_threads = []
+        for i in range(num_workers):
+            sockets_connected_evt = multiprocessing.Event() if process else threading.Event()
+            processor_thread = (multiprocessing.Process if process else threading.Thread)(
                                         target=_processor_startup_fn, args=(pull_port, push_port, sockets_connected_evt,
-                                              process_fn, event_queue, self._debug), name='ImageProcessor')
-        self.processor_thread.start()
-
-        sockets_connected_evt.wait()  # wait for push/pull sockets to connect
+                                              process_fn, event_queue, self._debug, bind_push, finished_evt),
+                                        name='ImageProcessor' if num_workers == 1 else 'ImageProcessor{}'.format(i))
+            processor_thread.start()
+            sockets_connected_evt.wait()  # wait for push/pull sockets to connect
+            self.processor_threads.append(processor_thread)
+        self.processor_thread = self.processor_threads[0]
         processor.start_push()
 
 
 def multi_d_acquisition_events(num_time_points=1, time_interval_s=0, z_start=None, z_end=None, z_step=None,
                 channel_group=None, channels=None, channel_exposures_ms=None, xy_positions=None, order='tpcz',
-                               keep_shutter_open_between_channels=False, keep_shutter_open_between_z_steps=False):
+                               keep_shutter_open_between_channels=False, keep_shutter_open_between_z_steps=False,
+                               compact=False):
     """
     Convenience function for generating the events of a typical multi-dimensional acquisition (i.e. an
     acquisition with some combination of multiple timepoints, channels, z-slices, or xy positions)
@@ -367,9 +535,17 @@ def multi_d_acquisition_events(num_time_points=1, time_interval_s=0, z_start=Non
     :type keep_shutter_open_between_channels: bool
     :param keep_shutter_open_between_z_steps: don't close the shutter during steps of a z stack
     :type keep_shutter_open_between_z_steps: bool
+    :param compact: Instead of a list of every event, return a compact description of them that is expanded on
+        the Java side as the acquisition runs. Much faster and lighter on memory for acquisitions with very many
+        events
+    :type compact: bool
 
     :return: a list of acquisition events to run the specified acquisition
     """
+    if compact:
+        return _compact_multi_d_acquisition_events(num_time_points, time_interval_s, z_start, z_end, z_step,
+                    channel_group, channels, channel_exposures_ms, xy_positions, order,
+                    keep_shutter_open_between_channels, keep_shutter_open_between_z_steps)
 
 
     def generate_events(event, order):
@@ -405,7 +581,7 @@ def multi_d_acquisition_events(num_time_points=1, time_interval_s=0, z_start=Non
                 new_event = copy.deepcopy(event)
                 new_event['channel'] = {'group': channel_group, 'config': channels[i]}
                 if channel_exposures_ms is not None:
-                    new_event['exposure'] = i
+                    new_event['exposure'] = channel_exposures_ms[i]
                 if keep_shutter_open_between_channels:
                     new_event['keep_shutter_open'] = True
                 yield generate_events(new_event, order[1:])
@@ -425,3 +601,37 @@ def multi_d_acquisition_events(num_time_points=1, time_interval_s=0, z_start=Non
 
     appender(generate_events(base_event, order))
     return events
+
+
+def _compact_multi_d_acquisition_events(num_time_points, time_interval_s, z_start, z_end, z_step, channel_group,
+                                        channels, channel_exposures_ms, xy_positions, order,
+                                        keep_shutter_open_between_channels, keep_shutter_open_between_z_steps):
+    """
+    Same events as multi_d_acquisition_events, but described as a template event plus a list of axes (slowest
+    changing first) that the Java side expands one event at a time
+    """
+    template = {'axes': {}}
+    axes = []
+    for axis in order:
+        if axis == 't' and num_time_points != 1:
+            time_axis = {'name': 'time', 'count': num_time_points}
+            if time_interval_s != 0:
+                time_axis['ranges'] = {'min_start_time': {'start': 0, 'step': time_interval_s}}
+            axes.append(time_axis)
+        elif axis == 'z' and z_start is not None and z_end is not None and z_step is not None:
+            axes.append({'name': 'z', 'count': len(np.arange(z_start, z_end, z_step)),
+                         'ranges': {'z': {'start': z_start, 'step': z_step}}})
+            if keep_shutter_open_between_z_steps:
+                template['keep_shutter_open'] = True
+        elif axis == 'p' and xy_positions is not None:
+            axes.append({'name': 'position', 'count': len(xy_positions),
+                         'values': [{'x': float(xy[0]), 'y': float(xy[1])} for xy in xy_positions]})
+        elif axis == 'c' and channel_group is not None and channels is not None:
+            values = [{'channel': {'group': channel_group, 'config': channel}} for channel in channels]
+            if channel_exposures_ms is not None:
+                for value, exposure in zip(values, channel_exposures_ms):
+                    value['exposure'] = exposure
+            axes.append({'count': len(channels), 'values': values})
+            if keep_shutter_open_between_channels:
+                template['keep_shutter_open'] = True
+    return {'compact-events': {'template': template, 'axes': axes}}
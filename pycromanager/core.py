@@ -16,14 +16,16 @@ class JavaSocket:
     Wrapper for ZMQ socket that sends and recieves dictionaries
     """
 
-    def __init__(self, context, port, type, debug):
+    def __init__(self, context, port, type, debug, bind=None):
         # request reply socket
         self._socket = context.socket(type)
         self._debug = debug
         # store these as wekrefs so that circular refs dont prevent garbage collection
         self._java_objects = WeakSet()
         # try:
-        if type == zmq.PUSH:
+        if bind is None:
+            bind = type == zmq.PUSH
+        if bind:
             if debug:
                 print('binding {}'.format(port))
             self._socket.bind("tcp://127.0.0.1:{}".format(port))
@@ -62,24 +64,38 @@ class JavaSocket:
             elif np.issubdtype(type(v), np.integer):
                 d[k] = int(v)
 
-    def send(self, message, timeout=0):
+    def send(self, message, timeout=0, binary_frames=None):
+        """
+        Send a message, optionally followed by raw binary frames (e.g. the buffers of numpy arrays) as a
+        multipart message
+        """
         if message is None:
             message = {}
         #make sure any np types convert to python types so they can be json serialized
         self._convert_np_to_python(message)
+        frames = [bytes(json.dumps(message), 'utf-8')]
+        if self._socket.type == zmq.DEALER:
+            # empty delimiter frame that a REQ socket would add, so that the java side can reply
+            frames.insert(0, b'')
+        if binary_frames is not None:
+            frames.extend(binary_frames)
         if timeout == 0:
-            self._socket.send(bytes(json.dumps(message), 'utf-8'))
+            self._socket.send_multipart(frames)
         else:
             start = time.time()
             while 1000 * (time.time() - start) < timeout:
                 try:
-                    self._socket.send(bytes(json.dumps(message), 'utf-8'), flags=zmq.NOBLOCK)
+                    self._socket.send_multipart(frames, flags=zmq.NOBLOCK)
                     return True
                 except zmq.ZMQError:
                     pass #ignore, keep trying
             return False
 
-    def receive(self, timeout=0):
+    def receive(self, timeout=0, check_exception=True):
+        """
+        Receive a message. If the message has raw binary frames following the JSON, they are
+        added to the returned dictionary as a list under the key 'binary-frames'
+        """
         if timeout == 0:
             reply = self._socket.recv()
         else:
@@ -94,8 +110,18 @@ class JavaSocket:
                     pass #ignore, keep trying
             if reply is None:
                 return reply
+        if self._socket.type == zmq.DEALER:
+            # skip the empty delimiter frame
+            reply = self._socket.recv()
         message = json.loads(reply.decode('utf-8'))
-        self._check_exception(message)
+        if self._socket.getsockopt(zmq.RCVMORE):
+            # remaining parts of a multipart message are delivered atomically, no need to wait
+            binary_frames = []
+            while self._socket.getsockopt(zmq.RCVMORE):
+                binary_frames.append(self._socket.recv())
+            message['binary-frames'] = binary_frames
+        if check_exception:
+            self._check_exception(message)
         return message
 
     def _check_exception(self, response):
@@ -144,6 +170,9 @@ class Bridge:
 
         self._convert_camel_case = convert_camel_case
         self._debug = debug
+        self._port = port
+        self._pipeline_socket = None
+        self._next_request_id = 0
         self._master_socket = JavaSocket(self._context, port, zmq.REQ, debug=debug)
         self._master_socket.send({'command': 'connect', 'debug': debug})
         self._class_factory = _JavaClassFactory()
@@ -160,7 +189,20 @@ class Bridge:
                           '\n To fix, update to BOTH latest pycromanager and latest micro-manager nightly build'.format(reply_json['version'],
                                                                                            self._EXPECTED_ZMQ_SERVER_VERSION))
 
-    def get_class(self, serialized_object) -> typing.Type['JavaObjectShadow']:
+    def get_class(self, serialized_object, socket=None) -> typing.Type['JavaObjectShadow']:
+        """
+        :param serialized_object: description of a Java object as sent by the Java side
+        :param socket: socket the object was received on, which is also where its class description is
+            looked up if only the id of the class was sent. Defaults to the master socket
+        """
+        if socket is None:
+            socket = self._master_socket
+        if 'api' not in serialized_object and serialized_object['class'] not in self._class_factory.classes:
+            # Java side only sent the id of the class, get the description of its API the first time it is seen
+            socket.send({'command': 'get-class-api', 'class-id': serialized_object['class-id']})
+            descriptor = socket.receive()
+            for key in ['interfaces', 'fields', 'api']:
+                serialized_object[key] = descriptor[key]
         return self._class_factory.create(serialized_object, convert_camel_case=self._convert_camel_case)
 
     def construct_java_object(self, classpath, new_socket=False, args=None):
@@ -193,7 +235,7 @@ class Bridge:
         # Calling a constructor, rather than getting return from method
         message = {'command': 'constructor', 'classpath': classpath,
                    'argument-types': valid_method_spec['arguments'],
-                   'arguments': _package_arguments(valid_method_spec, args)}
+                   'arguments': _package_arguments(valid_method_spec, args), 'api-by-reference': True}
         if new_socket:
             message['new-port'] = True
         self._master_socket.send(message)
@@ -202,17 +244,17 @@ class Bridge:
             socket = JavaSocket(self._context, serialized_object['port'], zmq.REQ)
         else:
             socket = self._master_socket
-        return self._class_factory.create(
-            serialized_object, convert_camel_case=self._convert_camel_case)(
-            socket=socket, serialized_object=serialized_object, bridge=self)
+        return self.get_class(serialized_object, self._master_socket)(socket=socket,
+                                                                      serialized_object=serialized_object, bridge=self)
 
-    def _connect_push(self, port):
+    def _connect_push(self, port, bind=True):
         """
         Connect a push socket on the given port
         :param port:
+        :param bind: bind to the port, rather than connect to a socket on the Java side that has bound it
         :return:
         """
-        return JavaSocket(self._context, port, zmq.PUSH, debug=self._debug)
+        return JavaSocket(self._context, port, zmq.PUSH, debug=self._debug, bind=bind)
 
     def _connect_pull(self, port):
         """
@@ -223,6 +265,64 @@ class Bridge:
         return JavaSocket(self._context, port, zmq.PULL, debug=self._debug)
 
 
+    def run_pipelined(self, calls):
+        """
+        Run many independent method calls on Java objects, without waiting for the reply to each one
+        before sending the next. This avoids paying the full round trip time for each call, e.g. when
+        reading properties of many devices. Calls on the same Java object run in the order given. Calls on
+        different objects may run in any order on the Java side, so they shouldn't depend on one another
+
+        :param calls: list of tuples of a method of a Java object followed by its arguments e.g.
+            [(core.get_property, 'Camera', 'Exposure'), (core.get_position,)]
+        :type calls: list
+        :return: list with the result of each call
+        """
+        if self._pipeline_socket is None:
+            self._pipeline_socket = JavaSocket(self._context, self._port, zmq.DEALER, debug=self._debug)
+        pending = {}
+        for index, call in enumerate(calls):
+            method, args = call[0], call[1:]
+            shadow = method.__self__
+            message = shadow._make_call_message(method.__kwdefaults__['signatures_list'], args)
+            message['request-id'] = self._next_request_id
+            pending[self._next_request_id] = (index, shadow)
+            self._next_request_id += 1
+            self._pipeline_socket.send(message)
+        replies = [None] * len(calls)
+        while len(pending) > 0:
+            reply = self._pipeline_socket.receive(check_exception=False)
+            if 'request-id' not in reply:
+                # can't tell which call this is for, so waiting for the others could block forever
+                raise Exception('Reply to pipelined call has no request id: {}'.format(reply.get('value', reply)))
+            if reply['request-id'] not in pending:
+                continue  # left over from an earlier call that was interrupted
+            index, shadow = pending.pop(reply['request-id'])
+            replies[index] = (shadow, reply)
+        # deserialize once all replies are in, so that an exception doesn't leave replies on the socket
+        return [shadow._deserialize(reply) for shadow, reply in replies]
+
+    def run_batch(self, calls):
+        """
+        Run a list of method calls on Java objects in a single round trip. Calls run in order, and the
+        result of an earlier call can be used as an argument to a later one by passing ``BatchResult(i)``,
+        where i is the index of the earlier call in the list
+
+        :param calls: list of tuples of a method of a Java object followed by its arguments e.g.
+            [(core.get_x_position,), (core.set_x_position, BatchResult(0))]
+        :type calls: list
+        :return: list with the result of each call
+        """
+        shadows = []
+        methods = []
+        for call in calls:
+            method, args = call[0], call[1:]
+            shadows.append(method.__self__)
+            methods.append(method.__self__._make_call_message(method.__kwdefaults__['signatures_list'], args))
+        self._master_socket.send({'command': 'run-methods', 'methods': methods})
+        reply = self._master_socket.receive()
+        return [shadow._deserialize(result, reply.get('binary-frames'))
+                for shadow, result in zip(shadows, reply['value'])]
+
     def get_magellan(self):
         """
         return an instance of the Micro-Magellan API
@@ -247,6 +347,16 @@ class Bridge:
         return self.construct_java_object('org.micromanager.Studio')
 
 
+class BatchResult:
+    """
+    Stand in for the result of an earlier call in :meth:`Bridge.run_batch`, to be used as an argument of a
+    later call in the same batch
+    """
+
+    def __init__(self, index):
+        self.index = index
+
+
 class _JavaClassFactory:
     """
     This class is responsible for generating subclasses of JavaObjectShadow. Each generated class is kept in a `dict`.
@@ -335,7 +445,8 @@ class JavaObjectShadow:
         Return a python version of the field with a given name
         :return:
         """
-        message = {'command': 'get-field', 'hash-code': self._hash_code, 'name': name}
+        message = {'command': 'get-field', 'hash-code': self._hash_code, 'name': name, 'binary-arrays': True,
+                   'api-by-reference': True}
         self._socket.send(message)
         return self._deserialize(self._socket.receive())
 
@@ -355,23 +466,33 @@ class JavaObjectShadow:
         :param kwargs: hold possible polymorphic args, or none
         :return:
         """
+        message = self._make_call_message(method_specs, fn_args)
+        self._socket.send(message)
+        return self._deserialize(self._socket.receive())
+
+    def _make_call_message(self, method_specs, fn_args: tuple):
+        """
+        Find the Java method matching the arguments and make the message to call it
+        """
         #args that are none are placeholders to allow for polymorphism and not considered part of the spec
         # fn_args = [a for a in fn_args if a is not None]
         valid_method_spec = _check_method_args(method_specs, fn_args)
         #args are good, make call through socket, casting the correct type if needed (e.g. int to float)
         message = {'command': 'run-method', 'hash-code': self._hash_code, 'name': valid_method_spec['name'],
-                   'argument-types': valid_method_spec['arguments']}
+                   'argument-types': valid_method_spec['arguments'], 'binary-arrays': True,
+                   'api-by-reference': True}
         message['arguments'] = _package_arguments(valid_method_spec, fn_args)
+        return message
 
-        self._socket.send(message)
-        return self._deserialize(self._socket.receive())
-
-    def _deserialize(self, json_return):
+    def _deserialize(self, json_return, binary_frames=None):
         """
         :param method_spec: info about the method that called it
         :param reply: bytes that represents return
+        :param binary_frames: raw frames of the message this is part of, if not the whole message
         :return: an appropriate python type of the converted value
         """
+        if binary_frames is None:
+            binary_frames = json_return.get('binary-frames')
         if json_return['type'] == 'exception':
             raise Exception(json_return['value'])
         elif json_return['type'] == 'null':
@@ -381,7 +502,7 @@ class JavaObjectShadow:
         elif json_return['type'] == 'string':
             return json_return['value']
         elif json_return['type'] == 'list':
-            return [self._deserialize(obj) for obj in json_return['value']]
+            return [self._deserialize(obj, binary_frames) for obj in json_return['value']]
         elif json_return['type'] == 'object':
             if json_return['class'] == 'JSONObject':
                 return json.loads(json_return['value'])
@@ -389,21 +510,27 @@ class JavaObjectShadow:
                 raise Exception('Unrecognized return class')
         elif json_return['type'] == 'unserialized-object':
             #inherit socket from parent object
-            return self._bridge.get_class(json_return)(socket=self._socket, serialized_object=json_return, bridge=self._bridge)
+            return self._bridge.get_class(json_return, self._socket)(socket=self._socket, serialized_object=json_return,
+                                                                     bridge=self._bridge)
         else:
-            return deserialize_array(json_return)
+            return deserialize_array(json_return, binary_frames)
 
 
 def serialize_array(array):
     return standard_b64encode(array.tobytes()).decode('utf-8')
 
 
-def deserialize_array(json_return):
+def deserialize_array(json_return, binary_frames=None):
     """
     Convert a serialized java array to the appropriate numpy type
     :param json_return:
+    :param binary_frames: raw frames of the message, for arrays sent in binary rather than Base64
     :return:
     """
+    if 'frame' in json_return:
+        # raw little endian bytes in a separate frame of the message
+        return np.frombuffer(binary_frames[json_return['frame'] - 1],
+                             dtype=_BINARY_ARRAY_TYPE_TO_DTYPE[json_return['type']]).copy()
     if json_return['type'] == 'byte-array':
         return np.frombuffer(standard_b64decode(json_return['value']), dtype='>u1').copy()
     elif json_return['type'] == 'double-array':
@@ -416,6 +543,13 @@ def deserialize_array(json_return):
         return np.frombuffer(standard_b64decode(json_return['value']), dtype='>f4').copy()
 
 
+def serialize_array_binary(array):
+    """
+    Convert numpy array to a little endian, contiguous buffer that can be sent as a raw binary frame
+    """
+    return np.ascontiguousarray(array, dtype=array.dtype.newbyteorder('<'))
+
+
 def _package_arguments(valid_method_spec, fn_args):
     """
     Serialize function arguments and also include description of their Java types
@@ -425,7 +559,7 @@ def _package_arguments(valid_method_spec, fn_args):
     """
     arguments = []
     for arg_type, arg_val in zip(valid_method_spec['arguments'], fn_args):
-        if isinstance(arg_val, JavaObjectShadow):
+        if isinstance(arg_val, (JavaObjectShadow, BatchResult)):
             arguments.append(_serialize_arg(arg_val))
         elif _JAVA_TYPE_NAME_TO_PYTHON_TYPE[arg_type] is object:
             arguments.append(_serialize_arg(arg_val))
@@ -445,6 +579,8 @@ def _serialize_arg(arg):
         return serialize_array(arg)
     elif isinstance(arg, JavaObjectShadow):
         return {'hash-code': arg._hash_code}
+    elif isinstance(arg, BatchResult):
+        return {'result-index': arg.index}
     else:
         raise Exception('Unknown argumetn type')
 
@@ -458,7 +594,10 @@ def _check_single_method_spec(method_spec, fn_args):
     if len(method_spec['arguments']) != len(fn_args):
         return False
     for arg_java_type, arg_val in zip(method_spec['arguments'], fn_args):
-        if isinstance(arg_val, JavaObjectShadow):
+        if isinstance(arg_val, BatchResult):
+            # type of the result isn't known until the batch runs on the Java side
+            continue
+        elif isinstance(arg_val, JavaObjectShadow):
             if arg_java_type not in arg_val._interfaces:
                 # check that it shadows object of the correct type
                 return False
@@ -547,6 +686,8 @@ _JAVA_TYPE_NAME_TO_CASTABLE_PYTHON_TYPE = {'boolean': {bool}, 'byte[]': {np.ndar
                                   'int': {int}, 'int[]': {np.ndarray}, 'java.lang.String': {str},
                                   'long': {int}, 'short': {int}, 'char': {int}, 'byte': {int}, 'void': {None},
                                   'java.lang.Object': {object}}
+_BINARY_ARRAY_TYPE_TO_DTYPE = {'byte-array': '<u1', 'double-array': '<f8', 'int-array': '<u4',
+                               'short-array': '<u2', 'float-array': '<f4'}
 _JAVA_NON_PRIMITIVES = {'byte[]', 'double[]', 'int[]', 'java.lang.String', 'java.lang.Object'}
 
 if __name__ == '__main__':
@@ -0,0 +1,20 @@
+"""
+Long lists of events are sent to the Java side in chunks, so the acquisition can start before all of them have
+arrived. Every event should still be acquired, in order
+"""
+import tempfile
+from pycromanager import Acquisition, multi_d_acquisition_events
+
+if __name__ == '__main__':
+    acquired = []
+
+    def img_process_fn(image, metadata):
+        acquired.append(metadata['Axes']['time'])
+        return image, metadata
+
+    # several chunks, with a partial one at the end
+    events = multi_d_acquisition_events(num_time_points=2500)
+    with Acquisition(directory=tempfile.mkdtemp(), name='chunked', image_process_fn=img_process_fn) as acq:
+        acq.acquire(events)
+    assert acquired == list(range(len(events)))
+    print('chunked events ok')
@@ -0,0 +1,29 @@
+"""
+Objects of a class the python side has already seen come across the bridge with only the id of their class,
+rather than a description of its whole API. This checks that such objects still work, including ones returned
+on a socket other than the master one
+"""
+from pycromanager import Bridge
+
+if __name__ == '__main__':
+    bridge = Bridge()
+
+    # Only the first of these carries the API of HashMap, the rest just its class id
+    maps = [bridge.construct_java_object('java.util.HashMap') for i in range(20)]
+    assert all(type(m) is type(maps[0]) for m in maps)
+    for i, m in enumerate(maps):
+        m.put('index', i)
+    assert [m.get('index') for m in maps] == list(range(20))
+
+    # Objects returned by methods come across by id too
+    key_sets = [m.key_set() for m in maps]
+    assert all(k.size() == 1 and k.contains('index') for k in key_sets)
+
+    # An object on its own socket returns objects whose class hasn't been seen yet, so their API has to be
+    # looked up through that socket rather than the master one
+    separate = bridge.construct_java_object('java.util.TreeMap', new_socket=True)
+    separate.put('a', 1)
+    entry = separate.first_entry()
+    assert entry.get_key() == 'a' and entry.get_value() == 1
+
+    print('classes described:', sorted(bridge._class_factory.classes.keys()))
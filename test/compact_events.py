@@ -0,0 +1,27 @@
+"""
+A compact description of a multi-dimensional acquisition, expanded on the Java side, should acquire exactly the
+same images in the same order as the full list of events
+"""
+import tempfile
+from pycromanager import Acquisition, multi_d_acquisition_events
+
+if __name__ == '__main__':
+    acquired = []
+
+    def img_process_fn(image, metadata):
+        acquired.append((tuple(sorted(metadata['Axes'].items())), metadata['Channel']))
+        return image, metadata
+
+    event_args = dict(num_time_points=3, z_start=0, z_end=5, z_step=1,
+                      channel_group='Channel', channels=['DAPI', 'FITC'], order='tcz')
+    results = {}
+    for compact in [False, True]:
+        acquired = []
+        with Acquisition(directory=tempfile.mkdtemp(), name='compact' if compact else 'full',
+                         image_process_fn=img_process_fn) as acq:
+            acq.acquire(multi_d_acquisition_events(compact=compact, **event_args))
+        results[compact] = acquired
+
+    assert len(results[False]) == 3 * 5 * 2
+    assert results[True] == results[False]
+    print('compact events ok')
@@ -0,0 +1,45 @@
+"""
+Reads of tiled data for display are cached block by block. A newly written tile should only invalidate the
+blocks it falls in, so the viewer sees the new data while blocks of other tiles are still served from memory
+"""
+import numpy as np
+import tempfile
+import time
+from pycromanager import Acquisition, Bridge
+
+if __name__ == '__main__':
+    bridge = Bridge()
+    core = bridge.get_core()
+    width, height = core.get_image_width(), core.get_image_height()
+
+    def wait_for_written(sink, num_images):
+        while sink.get_num_images_written() < num_images:
+            time.sleep(0.05)
+
+    with Acquisition(directory=tempfile.mkdtemp(), name='display_cache', tile_overlap=0,
+                     show_display=False) as acq:
+        sink = acq._remote_acq.get_data_sink()
+        # the position axis is left out of what the viewer asks for
+        axes = bridge.construct_java_object('java.util.HashMap')
+
+        def read_two_tiles():
+            hits, misses = sink.get_display_cache_hits(), sink.get_display_cache_misses()
+            image = sink.get_image_for_display(axes, 0, 0.0, 0.0, 2 * width, height)
+            pixels = np.reshape(image.pix, [height, 2 * width])
+            return pixels, sink.get_display_cache_hits() - hits, sink.get_display_cache_misses() - misses
+
+        acq.acquire({'row': 0, 'col': 0})
+        wait_for_written(sink, 1)
+        read_two_tiles()
+        pixels, hits, misses = read_two_tiles()
+        assert (hits, misses) == (2, 0)
+
+        acq.acquire({'row': 0, 'col': 1})
+        wait_for_written(sink, 2)
+        new_pixels, hits, misses = read_two_tiles()
+        # only the block of the new tile is read again
+        assert (hits, misses) == (1, 1)
+        assert np.array_equal(new_pixels[:, :width], pixels[:, :width])
+        # and the new tile shows up, rather than the empty area cached before it arrived
+        assert not np.array_equal(new_pixels[:, width:], pixels[:, width:])
+    print('display cache ok')
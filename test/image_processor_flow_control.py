@@ -0,0 +1,32 @@
+"""
+Limit the number of images waiting for a slow image processor, with each of the overflow policies
+"""
+import tempfile
+import time
+from pycromanager import Acquisition, multi_d_acquisition_events
+
+if __name__ == '__main__':
+    num_images = 30
+    processed = []
+
+    def slow_process_fn(image, metadata):
+        time.sleep(0.1)
+        processed.append(metadata['Axes']['time'])
+        return image, metadata
+
+    for policy in ['block', 'drop-oldest', 'drop-newest']:
+        processed.clear()
+        with Acquisition(directory=tempfile.mkdtemp(), name=policy, image_process_fn=slow_process_fn,
+                         max_images_in_flight=2, overflow_policy=policy) as acq:
+            acq.acquire(multi_d_acquisition_events(num_time_points=num_images))
+        print('{}: processed {} of {} images: {}'.format(policy, len(processed), num_images, processed))
+        # images are never reordered, whatever gets dropped
+        assert processed == sorted(processed)
+        if policy == 'block':
+            assert processed == list(range(num_images))
+        elif policy == 'drop-oldest':
+            # the newest image is never the one dropped
+            assert processed[-1] == num_images - 1
+        else:
+            # the first images fill the free slots before anything is dropped
+            assert processed[0] == 0
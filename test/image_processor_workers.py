@@ -0,0 +1,29 @@
+"""
+Run the image processor on several threads at once. Workers take different amounts of time, so results come
+back out of order and the Java side has to put them back in acquisition order (or pass them on as they come,
+with image_process_ordered=False). Either way, each result has to be saved with its own metadata
+"""
+import random
+import tempfile
+import time
+from pycromanager import Acquisition, multi_d_acquisition_events
+
+if __name__ == '__main__':
+    num_images = 40
+
+    def img_process_fn(image, metadata):
+        time.sleep(random.uniform(0, 0.05))
+        # mark each image, so a mix up between images and metadata shows up in the saved data
+        image[0, 0] = metadata['Axes']['time']
+        return image, metadata
+
+    for ordered in [True, False]:
+        with Acquisition(directory=tempfile.mkdtemp(), name='ordered' if ordered else 'unordered',
+                         image_process_fn=img_process_fn, image_process_workers=3,
+                         image_process_ordered=ordered) as acq:
+            acq.acquire(multi_d_acquisition_events(num_time_points=num_images))
+        assert not any(thread.is_alive() for thread in acq.processor_threads)
+        dataset = acq.get_dataset()
+        for t in range(num_images):
+            assert dataset.read_image(time=t)[0, 0] == t
+        print('ordered' if ordered else 'unordered', 'ok')
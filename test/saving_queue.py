@@ -0,0 +1,22 @@
+"""
+Processed images come back from python into reused receive buffers and can then wait in the saving queue. Each
+image has to be saved with its own pixels, not those of a later image that reused the same buffer
+"""
+import numpy as np
+import tempfile
+from pycromanager import Acquisition, multi_d_acquisition_events
+
+if __name__ == '__main__':
+    num_images = 100
+
+    def img_process_fn(image, metadata):
+        image[:] = metadata['Axes']['time']
+        return image, metadata
+
+    with Acquisition(directory=tempfile.mkdtemp(), name='saving_queue', image_process_fn=img_process_fn,
+                     saving_queue_size=32) as acq:
+        acq.acquire(multi_d_acquisition_events(num_time_points=num_images))
+    dataset = acq.get_dataset()
+    for t in range(num_images):
+        assert np.all(dataset.read_image(time=t) == t)
+    print('saving queue ok')
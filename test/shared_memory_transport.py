@@ -0,0 +1,25 @@
+"""
+Images sent to an image processor through shared memory should arrive exactly as they would over the socket,
+and come back unchanged if the processor returns them as is
+"""
+import numpy as np
+import tempfile
+from pycromanager import Acquisition, multi_d_acquisition_events
+
+if __name__ == '__main__':
+    received = {}
+
+    def img_process_fn(image, metadata):
+        received[tuple(sorted(metadata['Axes'].items()))] = image.copy()
+        return image, metadata
+
+    for shared_memory in [True, False]:
+        received.clear()
+        with Acquisition(directory=tempfile.mkdtemp(), name='shared_memory' if shared_memory else 'binary_frames',
+                         image_process_fn=img_process_fn, shared_memory_transport=shared_memory) as acq:
+            acq.acquire(multi_d_acquisition_events(num_time_points=50))
+        assert len(received) == 50
+        dataset = acq.get_dataset()
+        for axes, pixels in received.items():
+            assert np.array_equal(dataset.read_image(**dict(axes)), pixels)
+        print('shared memory' if shared_memory else 'binary frames', 'ok')
@@ -0,0 +1,36 @@
+"""
+Exercises the ZMQ server's worker pool. Run with the server set to several worker threads, e.g. by calling
+ZMQServer.getMasterServer().setNumWorkerThreads(4) on the Java side. With a single worker the ordering checks
+still pass, but the slow call blocks the others
+"""
+from pycromanager import Bridge
+import threading
+import time
+
+if __name__ == '__main__':
+    bridge = Bridge()
+    core = bridge.get_core()
+    other = bridge.construct_java_object('java.util.HashMap')
+
+    # A slow call on one object shouldn't hold up calls on another from a different thread
+    def slow_call():
+        Bridge().get_core().sleep(2000)
+    slow_thread = threading.Thread(target=slow_call)
+    start = time.time()
+    slow_thread.start()
+    time.sleep(0.2)
+    other.put('key', 'value')
+    print('call on another object during a slow call took {:.2f} s'.format(time.time() - start))
+    slow_thread.join()
+
+    # Calls on the same object run in the order they were sent, even when pipelined
+    calls = [(other.put, 'key', i) for i in range(100)]
+    bridge.run_pipelined(calls)
+    assert other.get('key') == 99
+
+    # Calls on different objects are independent, and each still gets its own reply back
+    maps = [bridge.construct_java_object('java.util.HashMap') for i in range(10)]
+    bridge.run_pipelined([(m.put, 'index', i) for i, m in enumerate(maps)])
+    assert bridge.run_pipelined([(m.get, 'index') for m in maps]) == list(range(10))
+
+    print('worker pool ok')